@@ -0,0 +1,106 @@
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/*
+################################################################################
+
+Profondita' aggregata del book (L2): i primi N livelli di prezzo di ogni lato con la quantita' totale del livello,
+letta dal totale mantenuto da PriceLevel senza scorrere le code degli ordini.
+
+Il checksum e' il CRC32 dei livelli in ordine, prima i bid (dal migliore) poi gli ask (dal migliore),
+ciascuno codificato come prezzo (int) e quantita' (long) in big endian. Lo stesso calcolo e' usato
+per la risposta a getDepth e per i delta del flusso dei dati di mercato, per cui un client che mantiene
+il proprio book locale rileva una divergenza confrontando il checksum dei propri primi N livelli.
+
+################################################################################
+*/
+
+/**
+ * Istantanea dei primi livelli del book, riusata: scritta dal thread del MatchingEngine, letta dal chiamante.
+ */
+public class BookDepth {
+
+    // Numero massimo di livelli per lato
+    public static final int MAX_LEVELS = 100;
+
+    private static final int LEVEL_BYTES = 12;
+
+    private final int[] bidPrices = new int[MAX_LEVELS];
+    private final long[] bidSizes = new long[MAX_LEVELS];
+    private final int[] askPrices = new int[MAX_LEVELS];
+    private final long[] askSizes = new long[MAX_LEVELS];
+    private int bidCount;
+    private int askCount;
+    private String symbol;
+    private long update;
+    private int checksum;
+
+    private final ByteBuffer scratch = ByteBuffer.allocate(2 * MAX_LEVELS * LEVEL_BYTES);
+    private final CRC32 crc = new CRC32();
+
+    /**
+     * Prepara l'istantanea di uno strumento.
+     *
+     * @param symbol Strumento.
+     * @param update Numero dell'ultimo aggiornamento dei livelli applicato al book (vedi i delta del flusso).
+     */
+    public void clear(String symbol, long update) {
+        this.symbol = symbol;
+        this.update = update;
+        this.bidCount = 0;
+        this.askCount = 0;
+    }
+
+    public void addBid(int price, long size) {
+        bidPrices[bidCount] = price;
+        bidSizes[bidCount++] = size;
+    }
+
+    public void addAsk(int price, long size) {
+        askPrices[askCount] = price;
+        askSizes[askCount++] = size;
+    }
+
+    /**
+     * Calcola il checksum dei livelli raccolti; va chiamato dopo l'ultimo addBid/addAsk.
+     *
+     * @return Il checksum.
+     */
+    public int seal() {
+        scratch.clear();
+        for (int i = 0; i < bidCount; i++) { scratch.putInt(bidPrices[i]).putLong(bidSizes[i]); }
+        for (int i = 0; i < askCount; i++) { scratch.putInt(askPrices[i]).putLong(askSizes[i]); }
+        scratch.flip();
+        crc.reset();
+        crc.update(scratch);
+        checksum = (int) crc.getValue();
+        return checksum;
+    }
+
+    public int getBidCount() { return bidCount; }
+    public int getAskCount() { return askCount; }
+    public int getBidPrice(int i) { return bidPrices[i]; }
+    public int getAskPrice(int i) { return askPrices[i]; }
+    public long getUpdate() { return update; }
+    public int getChecksum() { return checksum; }
+
+    /**
+     * {"symbol":..,"update":..,"bids":[[prezzo,quantita'],..],"asks":[..],"checksum":..}
+     * con i livelli dal migliore al peggiore e il checksum come intero senza segno.
+     */
+    public String toJson() {
+        StringBuilder json = new StringBuilder(64 + (bidCount + askCount) * 24);
+        json.append("{\"symbol\":\"").append(symbol).append("\",\"update\":").append(update).append(",\"bids\":[");
+        appendLevels(json, bidPrices, bidSizes, bidCount);
+        json.append("],\"asks\":[");
+        appendLevels(json, askPrices, askSizes, askCount);
+        return json.append("],\"checksum\":").append(Integer.toUnsignedLong(checksum)).append('}').toString();
+    }
+
+    private static void appendLevels(StringBuilder json, int[] prices, long[] sizes, int count) {
+        for (int i = 0; i < count; i++) {
+            if (i > 0) { json.append(','); }
+            json.append('[').append(prices[i]).append(',').append(sizes[i]).append(']');
+        }
+    }
+}
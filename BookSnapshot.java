@@ -0,0 +1,177 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+/*
+################################################################################
+
+Lo snapshot e' lo stato di un order book ricostruito dal journal, salvato in binario in ordersServer_<SYMBOL>.snapshot:
+	- int MAGIC, long journalPosition: posizione del journal fino alla quale lo snapshot e' aggiornato
+	- int maxOrderId, int lastPrice
+	- int count, poi per ogni ordine attivo: orderId, side, orderType, size, price, timestamp, owner (short + byte UTF-8)
+	- int days, poi per ogni giorno con trade: giorno dall'epoch, apertura, chiusura, massimo, minimo, volume
+Gli ordini sono salvati nell'ordine in cui sono entrati nel book, per cui ripristinandoli in sequenza
+ogni livello di prezzo ritrova la propria priorita' FIFO.
+
+Lo stato non viene copiato dal book: e' una copia ombra aggiornata rileggendo il journal (REST aggiunge,
+TRADE riduce il maker, CANCEL e l'esecuzione di uno stop rimuovono), per cui gli snapshot sono presi
+dal thread Snapshotter senza fermare il MatchingEngine.
+All'avvio si carica l'ultimo snapshot e si rilegge solo la coda del journal successiva a journalPosition.
+
+################################################################################
+*/
+
+/**
+ * Stato ricostruibile di un order book: ordini attivi, stop in attesa, contatore degli ID, ultimo prezzo e dati giornalieri.
+ * Un'istanza e' usata da un solo thread alla volta.
+ */
+public class BookSnapshot implements OrderJournal.Handler {
+
+    private static final int MAGIC = 0x43524f32; // "CRO2"
+
+    // Ordini attivi (limit nel book e stop in attesa) per orderId, in ordine di ingresso nel book
+    private final LinkedHashMap<Integer, OrderBook.Order> orders = new LinkedHashMap<>();
+    private long journalPosition = 0;
+    private int maxOrderId = 0;
+    private int lastPrice = 0;
+    private final PriceHistory priceHistory = new PriceHistory();
+
+    public long getJournalPosition() { return journalPosition; }
+    public int getMaxOrderId() { return maxOrderId; }
+    public int getLastPrice() { return lastPrice; }
+    public PriceHistory getPriceHistory() { return priceHistory; }
+
+    /**
+     * @return Gli ordini attivi, nell'ordine in cui sono entrati nel book.
+     */
+    public Collection<OrderBook.Order> getOrders() { return orders.values(); }
+
+    /**
+     * Carica uno snapshot, oppure restituisce uno stato vuoto se il file non esiste o e' in un formato diverso
+     * (ad esempio quello precedente, senza i dati giornalieri): in quel caso lo stato viene ricostruito dall'intero journal
+     * e il file viene sostituito al primo salvataggio.
+     *
+     * @param file File dello snapshot.
+     * @return Lo stato letto.
+     * @throws IOException Se il file esiste ma non e' leggibile.
+     */
+    public static BookSnapshot load(File file) throws IOException {
+        BookSnapshot snapshot = new BookSnapshot();
+        if (!file.exists()) { return snapshot; }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                System.err.println("Snapshot " + file + " in un formato diverso, ricostruzione completa dal journal");
+                return snapshot;
+            }
+            snapshot.journalPosition = in.readLong();
+            snapshot.maxOrderId = in.readInt();
+            snapshot.lastPrice = in.readInt();
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int orderId = in.readInt();
+                OrderBook.Side side = OrderBook.Side.fromCode(in.readByte());
+                OrderBook.OrderType orderType = OrderBook.OrderType.fromCode(in.readByte());
+                int size = in.readInt();
+                int price = in.readInt();
+                int timestamp = in.readInt();
+                byte[] owner = new byte[in.readShort()];
+                in.readFully(owner);
+                snapshot.onRest(orderId, side, orderType, size, price, timestamp, new String(owner, StandardCharsets.UTF_8));
+            }
+            snapshot.priceHistory.read(in);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Aggiorna lo stato con i record del journal successivi a journalPosition.
+     *
+     * @param journal File del journal.
+     * @return true se sono stati letti nuovi record.
+     * @throws IOException Se la lettura fallisce.
+     */
+    public boolean catchUp(File journal) throws IOException {
+        long position = OrderJournal.read(journal, journalPosition, this);
+        boolean advanced = position != journalPosition;
+        journalPosition = position;
+        return advanced;
+    }
+
+    /**
+     * Salva lo stato scrivendo un file temporaneo e sostituendo lo snapshot precedente con uno spostamento atomico,
+     * per cui un arresto durante il salvataggio lascia intatto l'ultimo snapshot valido.
+     *
+     * @param file File dello snapshot.
+     * @throws IOException Se la scrittura fallisce.
+     */
+    public void save(File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (FileOutputStream stream = new FileOutputStream(tmp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream))) {
+            out.writeInt(MAGIC);
+            out.writeLong(journalPosition);
+            out.writeInt(maxOrderId);
+            out.writeInt(lastPrice);
+            out.writeInt(orders.size());
+            for (OrderBook.Order order : orders.values()) {
+                byte[] owner = order.getOwner().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(order.getOrderId());
+                out.writeByte(order.getType().getCode());
+                out.writeByte(order.getOrderType().getCode());
+                out.writeInt(order.getSize());
+                out.writeInt(order.getPrice());
+                out.writeInt(order.getTimestamp());
+                out.writeShort(owner.length);
+                out.write(owner);
+            }
+            priceHistory.write(out);
+            out.flush();
+            stream.getFD().sync();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    @Override
+    public void onOrder(int orderId, OrderBook.Side side, OrderBook.OrderType orderType, int size, int price, int timestamp, String owner) {
+        maxOrderId = Math.max(maxOrderId, orderId);
+        // Uno stop viene registrato come ORDER solo dopo essere stato attivato ed eseguito
+        if (orderType == OrderBook.OrderType.STOP) { orders.remove(orderId); }
+    }
+
+    @Override
+    public void onRest(int orderId, OrderBook.Side side, OrderBook.OrderType orderType, int size, int price, int timestamp, String owner) {
+        maxOrderId = Math.max(maxOrderId, orderId);
+        orders.put(orderId, new OrderBook.Order().restore(orderId, owner, side, orderType, size, price, timestamp));
+    }
+
+    @Override
+    public void onTrade(int makerOrderId, int takerOrderId, OrderBook.Side takerSide, OrderBook.OrderType takerOrderType,
+            int price, int size, int timestamp) {
+        lastPrice = price;
+        priceHistory.onTrade(price, size, timestamp);
+        OrderBook.Order maker = orders.get(makerOrderId);
+        if (maker == null) { return; }
+        if (maker.getSize() <= size) {
+            orders.remove(makerOrderId);
+        } else {
+            maker.setSize(maker.getSize() - size);
+        }
+    }
+
+    @Override
+    public void onCancel(int orderId) {
+        orders.remove(orderId);
+    }
+}
@@ -0,0 +1,63 @@
+import java.nio.ByteBuffer;
+
+/**
+ * Scrittura di JSON compatto (senza spazi) direttamente in un ByteBuffer, in UTF-8,
+ * senza costruire alberi JsonObject ne' stringhe intermedie.
+ * Usato per le notifiche delle esecuzioni, i cui campi sono numeri ed etichette ASCII fisse.
+ */
+public final class CompactJson {
+
+    private CompactJson() {}
+
+    /**
+     * Scrive testo ASCII senza caratteri da escape (nomi dei campi, etichette, punteggiatura).
+     */
+    public static void putAscii(ByteBuffer buffer, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            buffer.put((byte) text.charAt(i));
+        }
+    }
+
+    /**
+     * Scrive un intero in decimale.
+     */
+    public static void putNumber(ByteBuffer buffer, long value) {
+        if (value < 0) {
+            buffer.put((byte) '-');
+            if (value == Long.MIN_VALUE) {
+                putAscii(buffer, "9223372036854775808");
+                return;
+            }
+            value = -value;
+        }
+        // Cifre scritte dalla piu' significativa, senza allocare la stringa del numero
+        long divisor = 1;
+        while (value / divisor >= 10) { divisor *= 10; }
+        for (; divisor > 0; divisor /= 10) {
+            buffer.put((byte) ('0' + (value / divisor) % 10));
+        }
+    }
+
+    /**
+     * Scrive un campo numerico: "name":value, con la virgola iniziale se non e' il primo.
+     */
+    public static void putField(ByteBuffer buffer, String name, long value, boolean first) {
+        if (!first) { buffer.put((byte) ','); }
+        buffer.put((byte) '"');
+        putAscii(buffer, name);
+        putAscii(buffer, "\":");
+        putNumber(buffer, value);
+    }
+
+    /**
+     * Scrive un campo testuale ASCII: "name":"value", con la virgola iniziale se non e' il primo.
+     */
+    public static void putField(ByteBuffer buffer, String name, String value, boolean first) {
+        if (!first) { buffer.put((byte) ','); }
+        buffer.put((byte) '"');
+        putAscii(buffer, name);
+        putAscii(buffer, "\":\"");
+        putAscii(buffer, value);
+        buffer.put((byte) '"');
+    }
+}
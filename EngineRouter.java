@@ -0,0 +1,181 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Distribuisce gli strumenti negoziati tra piu' MatchingEngine (shard).
+ * Ogni strumento ha il proprio OrderBook, assegnato ad un solo motore che lo possiede in esclusiva,
+ * cosi' strumenti indipendenti vengono eseguiti in parallelo su thread diversi.
+ */
+public class EngineRouter {
+
+    private final MatchingEngine[] engines;
+
+    // Associazioni fissate alla costruzione, poi solo lette dai thread dei client
+    private final Map<String, MatchingEngine> engineBySymbol = new HashMap<>();
+    private final Map<String, OrderBook> bookBySymbol = new HashMap<>();
+    private final String defaultSymbol;
+
+    // Pool delle interrogazioni sulla cronologia, condiviso dagli strumenti e separato dai motori
+    private final HistoryQuery historyQuery;
+    private final HistoryCache historyCache;
+
+    // Flusso multicast dei trade e del top of book di tutti gli strumenti, null se marketdata.enabled=false
+    private final MarketDataPublisher marketData;
+
+    /**
+     * Costruisce gli shard leggendo dalla configurazione:
+     * server.symbols (lista separata da virgole, il primo e' lo strumento di default),
+     * server.engineThreads (numero di motori), server.ringSize (slot del ring buffer di ogni motore),
+     * history.parallelism (thread delle interrogazioni sulla cronologia, di default uno per core),
+     * history.cacheSize (risultati delle interrogazioni tenuti in cache),
+     * marketdata.enabled e le chiavi marketdata.* del flusso multicast dei dati di mercato,
+     * oltre alle chiavi journal.* e snapshot.* lette da ogni order book per la persistenza e il ripristino.
+     *
+     * @param config Proprieta' del server.
+     * @param openOrders Osservatore degli ordini attivi per utente, collegato ad ogni book prima del ripristino.
+     * @throws IOException Se lo stato di uno strumento non puo' essere ripristinato o il suo journal aperto.
+     */
+    public EngineRouter(Properties config, OrderBook.OpenOrderListener openOrders) throws IOException {
+        String[] symbols = config.getProperty("server.symbols", "BTC").split(",");
+        int engineThreads = Integer.parseInt(config.getProperty("server.engineThreads", "1"));
+        int ringSize = Integer.parseInt(config.getProperty("server.ringSize", "1024"));
+        this.marketData = Boolean.parseBoolean(config.getProperty("marketdata.enabled", "true"))
+                ? new MarketDataPublisher(config) : null;
+
+        // Gli strumenti sono assegnati ai motori a rotazione nell'ordine della configurazione
+        int shards = Math.max(1, Math.min(engineThreads, symbols.length));
+        List<Map<String, OrderBook>> shardBooks = new ArrayList<>();
+        for (int i = 0; i < shards; i++) { shardBooks.add(new HashMap<>()); }
+
+        for (int i = 0; i < symbols.length; i++) {
+            String symbol = symbols[i].trim();
+            OrderBook book = OrderBook.fromConfig(config, symbol);
+            book.setOpenOrderListener(openOrders);
+            book.setUpOrderHistory(config);
+            book.setMarketData(marketData);
+            shardBooks.get(i % shards).put(symbol, book);
+            bookBySymbol.put(symbol, book);
+        }
+        this.defaultSymbol = symbols[0].trim();
+        this.historyQuery = new HistoryQuery(Integer.parseInt(config.getProperty("history.parallelism",
+                String.valueOf(Runtime.getRuntime().availableProcessors()))));
+        this.historyCache = new HistoryCache(Integer.parseInt(config.getProperty("history.cacheSize", "1024")));
+
+        this.engines = new MatchingEngine[shards];
+        for (int i = 0; i < shards; i++) {
+            engines[i] = new MatchingEngine(Collections.unmodifiableMap(shardBooks.get(i)), ringSize, "matching-engine-" + i);
+            for (String symbol : shardBooks.get(i).keySet()) {
+                engineBySymbol.put(symbol, engines[i]);
+            }
+        }
+    }
+
+    /**
+     * Avvia il publisher dei dati di mercato e i thread di tutti i motori.
+     */
+    public void start() {
+        if (marketData != null) { marketData.start(); }
+        for (MatchingEngine engine : engines) { engine.start(); }
+    }
+
+    /**
+     * @param symbol Strumento richiesto dal client, puo' essere null o vuoto.
+     * @return Lo strumento da usare, quello di default se non specificato.
+     */
+    public String resolve(String symbol) {
+        return (symbol == null || symbol.isEmpty()) ? defaultSymbol : symbol;
+    }
+
+    private MatchingEngine engineOf(String symbol) {
+        MatchingEngine engine = engineBySymbol.get(symbol);
+        if (engine == null) {
+            throw new IllegalArgumentException("Strumento non valido: " + symbol);
+        }
+        return engine;
+    }
+
+    public void insertLimitOrder(String symbol, String owner, OrderBook.Side type, int size, int price, ExecutionReport report) throws IOException {
+        engineOf(symbol).insertLimitOrder(symbol, owner, type, size, price, report);
+        awaitDurable(symbol, report);
+    }
+
+    public void insertMarketOrder(String symbol, String owner, OrderBook.Side type, int size, ExecutionReport report) throws IOException {
+        engineOf(symbol).insertMarketOrder(symbol, owner, type, size, report);
+        awaitDurable(symbol, report);
+    }
+
+    public void insertStopOrder(String symbol, String owner, OrderBook.Side type, int size, int stopPrice, ExecutionReport report) throws IOException {
+        engineOf(symbol).insertStopOrder(symbol, owner, type, size, stopPrice, report);
+        awaitDurable(symbol, report);
+    }
+
+    public void cancelOrder(String symbol, int orderId, String owner, ExecutionReport report) throws IOException {
+        engineOf(symbol).cancelOrder(symbol, orderId, owner, report);
+        awaitDurable(symbol, report);
+    }
+
+    /**
+     * Primi livelli aggregati del book di uno strumento, letti dal motore che lo possiede.
+     *
+     * @param symbol Strumento richiesto.
+     * @param levels Numero massimo di livelli per lato (al massimo BookDepth.MAX_LEVELS).
+     * @param report Report del chiamante, riusato.
+     * @param depth Istantanea del chiamante, riscritta.
+     */
+    public void getDepth(String symbol, int levels, ExecutionReport report, BookDepth depth) throws IOException {
+        engineOf(symbol).getDepth(symbol, levels, report, depth);
+    }
+
+    // La risposta al client parte solo quando il journal ha raggiunto la durabilita' configurata per gli eventi del comando
+    private void awaitDurable(String symbol, ExecutionReport report) throws IOException {
+        bookBySymbol.get(symbol).awaitDurable(report.getJournalSequence());
+    }
+
+    /**
+     * Cronologia dei prezzi di uno strumento, letta dai dati giornalieri mantenuti dal book senza passare dal motore.
+     *
+     * @param symbol Strumento richiesto.
+     * @param month Mese richiesto (1-12).
+     * @param year Anno richiesto.
+     * @return Dati giornalieri del mese.
+     */
+    public Map<Integer, OrderBook.DayPriceData> getPriceHistory(String symbol, int month, int year) {
+        return bookOf(symbol).getPriceHistory(month, year);
+    }
+
+    /**
+     * Cronologia dei prezzi di uno strumento su un intervallo qualsiasi, per periodo, calcolata in parallelo
+     * dal pool delle interrogazioni senza passare dal motore.
+     * I periodi chiusi sono letti dalla cache, il giorno corrente e' ricalcolato solo dopo nuovi trade.
+     *
+     * @param symbol Strumento richiesto.
+     * @param from Inizio dell'intervallo (secondi dall'epoch, incluso).
+     * @param to Fine dell'intervallo (secondi dall'epoch, incluso).
+     * @param interval Ampiezza dei periodi.
+     * @return Dati per periodo, indicizzati dal primo giorno (yyyyMMdd).
+     * @throws IOException Se i trade dello strumento non possono essere letti.
+     */
+    public Map<Integer, OrderBook.DayPriceData> getPriceHistory(String symbol, int from, int to, HistoryQuery.Interval interval) throws IOException {
+        OrderBook book = bookOf(symbol);
+        return historyCache.get(symbol, from, to, interval, book.getTradeVersion(),
+                (partFrom, partTo) -> book.getPriceHistory(partFrom, partTo, interval, historyQuery));
+    }
+
+    /**
+     * @return La cache delle interrogazioni sulla cronologia, con i contatori di hit e miss.
+     */
+    public HistoryCache getHistoryCache() { return historyCache; }
+
+    private OrderBook bookOf(String symbol) {
+        OrderBook book = bookBySymbol.get(symbol);
+        if (book == null) {
+            throw new IllegalArgumentException("Strumento non valido: " + symbol);
+        }
+        return book;
+    }
+}
@@ -0,0 +1,78 @@
+import java.util.Arrays;
+
+/**
+ * Esito di un comando eseguito dal MatchingEngine: orderId assegnato, esito della cancellazione e trade prodotti,
+ * compresi quelli degli stop order attivati a cascata.
+ * Le istanze sono riutilizzate (una per slot del ring buffer e una per connessione) e anche i Trade al loro interno
+ * vengono riscritti, per cui un report non alloca nulla a regime.
+ */
+public class ExecutionReport {
+
+    private int orderId = -1;
+    private boolean success = false;
+    private OrderBook.Trade[] trades = new OrderBook.Trade[8];
+    private int tradeCount = 0;
+    private int unfilledSize = 0; // Quantita' di un ordine di mercato scartata per mancanza di controparte
+    private long journalSequence = 0; // Ultimo record del journal scritto dal comando
+
+    /**
+     * Prepara il report per un nuovo comando.
+     */
+    public void reset() {
+        orderId = -1;
+        success = false;
+        tradeCount = 0;
+        unfilledSize = 0;
+        journalSequence = 0;
+    }
+
+    public int getOrderId() { return orderId; }
+    public boolean isSuccess() { return success; }
+    public int getTradeCount() { return tradeCount; }
+    public OrderBook.Trade getTrade(int i) { return trades[i]; }
+    public long getJournalSequence() { return journalSequence; }
+    public int getUnfilledSize() { return unfilledSize; }
+
+    public void setOrderId(int orderId) { this.orderId = orderId; }
+    public void setSuccess(boolean success) { this.success = success; }
+    public void setJournalSequence(long journalSequence) { this.journalSequence = journalSequence; }
+    public void setUnfilledSize(int unfilledSize) { this.unfilledSize = unfilledSize; }
+
+    // Restituisce il prossimo Trade libero, allocandolo solo la prima volta che il report raggiunge questa dimensione
+    private OrderBook.Trade nextTrade() {
+        if (tradeCount == trades.length) {
+            trades = Arrays.copyOf(trades, tradeCount * 2);
+        }
+        if (trades[tradeCount] == null) {
+            trades[tradeCount] = new OrderBook.Trade();
+        }
+        return trades[tradeCount++];
+    }
+
+    /**
+     * Registra l'esecuzione tra un ordine entrante e un ordine nel book.
+     *
+     * @return Il trade registrato, valido fino al prossimo reset del report.
+     */
+    public OrderBook.Trade addTrade(OrderBook.Order maker, OrderBook.Order taker, int price, int size) {
+        OrderBook.Trade trade = nextTrade();
+        trade.set(maker, taker, price, size);
+        return trade;
+    }
+
+    /**
+     * Copia un altro report in questo, riusando i Trade gia' allocati.
+     *
+     * @param other Report da copiare.
+     */
+    public void copyFrom(ExecutionReport other) {
+        reset();
+        orderId = other.orderId;
+        success = other.success;
+        unfilledSize = other.unfilledSize;
+        journalSequence = other.journalSequence;
+        for (int i = 0; i < other.tradeCount; i++) {
+            nextTrade().copyFrom(other.trades[i]);
+        }
+    }
+}
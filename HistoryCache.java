@@ -0,0 +1,168 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+################################################################################
+
+Cache dei risultati delle interrogazioni sulla cronologia dei prezzi, con al piu' capacity risultati ed eliminazione LRU.
+Ogni richiesta viene divisa al confine del periodo aperto (il giorno GMT corrente):
+	- la parte chiusa non puo' piu' cambiare, per cui il suo risultato resta in cache finche' non viene eliminato
+	- la parte aperta e' salvata insieme all'ultimo trade registrato nel TradeStore al momento del calcolo
+	  ed e' ricalcolata solo se nel frattempo sono arrivati nuovi trade (che cadono sempre nel periodo aperto)
+Le due parti sono unite con DayPriceData.merge, per cui un nuovo trade invalida solo il giorno corrente e non l'intera richiesta.
+Il confine e' spostato indietro di GRACE_SECONDS: i trade eseguiti poco prima della mezzanotte potrebbero
+non essere ancora nel TradeStore, per cui il giorno precedente resta aperto per il primo minuto del giorno nuovo.
+
+################################################################################
+*/
+
+/**
+ * Cache LRU dei risultati delle interrogazioni sulla cronologia, per strumento, intervallo e periodo,
+ * con contatori di hit e miss per dimensionarla. Usata dai thread dei client.
+ */
+public class HistoryCache {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    private static final int GRACE_SECONDS = 60;
+
+    /**
+     * Calcola il risultato di una parte dell'intervallo quando non e' in cache.
+     */
+    public interface Loader {
+        Map<Integer, OrderBook.DayPriceData> load(int from, int to) throws IOException;
+    }
+
+    private static final class Key {
+        final String symbol;
+        final int from, to;
+        final HistoryQuery.Interval interval;
+
+        Key(String symbol, int from, int to, HistoryQuery.Interval interval) {
+            this.symbol = symbol;
+            this.from = from;
+            this.to = to;
+            this.interval = interval;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) { return true; }
+            if (!(o instanceof Key)) { return false; }
+            Key other = (Key) o;
+            return from == other.from && to == other.to && interval == other.interval && symbol.equals(other.symbol);
+        }
+
+        @Override
+        public int hashCode() { return Objects.hash(symbol, from, to, interval); }
+    }
+
+    private static final class Entry {
+        final Map<Integer, OrderBook.DayPriceData> result;
+        // Ultimo trade registrato quando il risultato e' stato calcolato, -1 per le parti chiuse
+        final long version;
+
+        Entry(Map<Integer, OrderBook.DayPriceData> result, long version) {
+            this.result = result;
+            this.version = version;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> entries;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param capacity Numero massimo di risultati in cache.
+     */
+    public HistoryCache(int capacity) {
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public long getHits() { return hits.get(); }
+    public long getMisses() { return misses.get(); }
+
+    /**
+     * Restituisce la cronologia di un intervallo, usando la cache per la parte chiusa e per quella aperta
+     * se non sono arrivati nuovi trade.
+     *
+     * @param symbol Strumento richiesto.
+     * @param from Inizio dell'intervallo (secondi dall'epoch, incluso).
+     * @param to Fine dell'intervallo (secondi dall'epoch, incluso).
+     * @param interval Ampiezza dei periodi.
+     * @param version Ultimo trade registrato per lo strumento, letto prima della richiesta.
+     * @param loader Calcolo di una parte dell'intervallo.
+     * @return Una copia del risultato, che il chiamante puo' modificare.
+     * @throws IOException Se il calcolo fallisce.
+     */
+    public Map<Integer, OrderBook.DayPriceData> get(String symbol, int from, int to, HistoryQuery.Interval interval,
+            long version, Loader loader) throws IOException {
+        long now = Instant.now().getEpochSecond() - GRACE_SECONDS;
+        int openFrom = (int) (Math.floorDiv(now, (long) SECONDS_PER_DAY) * SECONDS_PER_DAY);
+
+        TreeMap<Integer, OrderBook.DayPriceData> result = new TreeMap<>();
+        if (from < openFrom) {
+            merge(result, lookup(new Key(symbol, from, Math.min(to, openFrom - 1), interval), -1, loader));
+        }
+        if (to >= openFrom) {
+            merge(result, lookup(new Key(symbol, Math.max(from, openFrom), to, interval), version, loader));
+        }
+        return result;
+    }
+
+    private Map<Integer, OrderBook.DayPriceData> lookup(Key key, long version, Loader loader) throws IOException {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.version == version) {
+            hits.incrementAndGet();
+            return entry.result;
+        }
+
+        // Calcolo fuori dal lock: due richieste uguali concorrenti possono calcolare lo stesso risultato
+        misses.incrementAndGet();
+        Map<Integer, OrderBook.DayPriceData> result = loader.load(key.from, key.to);
+        synchronized (entries) {
+            entries.put(key, new Entry(result, version));
+        }
+        return result;
+    }
+
+    // Aggiunge al risultato una copia dei dati di una parte successiva, unendo i periodi a cavallo del confine
+    private static void merge(TreeMap<Integer, OrderBook.DayPriceData> result, Map<Integer, OrderBook.DayPriceData> part) {
+        for (Map.Entry<Integer, OrderBook.DayPriceData> entry : part.entrySet()) {
+            OrderBook.DayPriceData data = result.get(entry.getKey());
+            if (data == null) {
+                result.put(entry.getKey(), entry.getValue().copy());
+            } else {
+                data.merge(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * {"size":..,"hits":..,"misses":..}: risultati in cache e richieste servite dalla cache o ricalcolate.
+     */
+    public String toJson() {
+        synchronized (entries) {
+            return "{\"size\":" + entries.size() + ",\"hits\":" + hits.get() + ",\"misses\":" + misses.get() + "}";
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (entries) {
+            return "HistoryCache{size=" + entries.size() + ", hits=" + hits.get() + ", misses=" + misses.get() + "}";
+        }
+    }
+}
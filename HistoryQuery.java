@@ -0,0 +1,148 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveTask;
+
+/*
+################################################################################
+
+Le interrogazioni sulla cronologia dei prezzi per intervalli lunghi (anni di trade) sono divise per giorno:
+	- l'intervallo di giorni viene diviso a meta' ricorsivamente, ogni giorno e' un task che legge il proprio
+	  segmento o archivio dal TradeStore
+	- i risultati parziali sono mappe periodo -> DayPriceData, unite con DayPriceData.merge: l'unione e' associativa
+	  (apertura dalla parte precedente, chiusura dalla successiva, massimo, minimo e volume combinati),
+	  per cui il risultato non dipende da come l'intervallo e' stato diviso
+I task girano su un ForkJoinPool dedicato, separato dai thread dei MatchingEngine e dal pool dei client.
+
+################################################################################
+*/
+
+/**
+ * Esegue in parallelo le interrogazioni sulla cronologia dei prezzi, raggruppando i trade per periodo (Interval).
+ */
+public class HistoryQuery {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    /**
+     * Ampiezza dei periodi del risultato, con il nome usato nei comandi JSON.
+     * Ogni periodo e' identificato dal suo primo giorno.
+     */
+    public enum Interval {
+        DAY("day"), WEEK("week"), MONTH("month"), YEAR("year");
+
+        private final String label;
+
+        Interval(String label) { this.label = label; }
+
+        public String getLabel() { return label; }
+
+        public static Interval parse(String label) {
+            for (Interval interval : values()) {
+                if (interval.label.equalsIgnoreCase(label)) { return interval; }
+            }
+            throw new IllegalArgumentException("Intervallo non valido: " + label);
+        }
+
+        // Primo giorno del periodo che contiene la data
+        LocalDate start(LocalDate date) {
+            switch (this) {
+                case WEEK: return date.with(DayOfWeek.MONDAY);
+                case MONTH: return date.withDayOfMonth(1);
+                case YEAR: return date.withDayOfYear(1);
+                default: return date;
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
+
+    /**
+     * @param parallelism Numero di thread del pool.
+     */
+    public HistoryQuery(int parallelism) {
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("history-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    /**
+     * Calcola apertura, chiusura, massimo, minimo e volume dei trade di un intervallo, per periodo.
+     *
+     * @param store Trade dello strumento.
+     * @param from Inizio dell'intervallo (secondi dall'epoch, incluso).
+     * @param to Fine dell'intervallo (secondi dall'epoch, incluso).
+     * @param interval Ampiezza dei periodi.
+     * @return Mappa ordinata primo giorno del periodo (yyyyMMdd) -> dati del periodo, solo per i periodi con trade.
+     * @throws IOException Se un segmento o un archivio non puo' essere letto.
+     */
+    public Map<Integer, OrderBook.DayPriceData> aggregate(TradeStore store, int from, int to, Interval interval) throws IOException {
+        if (from > to) { return new TreeMap<>(); }
+        DayRange task = new DayRange(store, from, to, interval,
+                Math.floorDiv(from, SECONDS_PER_DAY), Math.floorDiv(to, SECONDS_PER_DAY));
+        try {
+            return pool.invoke(task);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    // Giorni da firstDay a lastDay (inclusi): divisi a meta' fino al singolo giorno, poi uniti in ordine
+    private static final class DayRange extends RecursiveTask<TreeMap<Integer, OrderBook.DayPriceData>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient TradeStore store;
+        private final int from, to;
+        private final Interval interval;
+        private final int firstDay, lastDay;
+
+        DayRange(TradeStore store, int from, int to, Interval interval, int firstDay, int lastDay) {
+            this.store = store;
+            this.from = from;
+            this.to = to;
+            this.interval = interval;
+            this.firstDay = firstDay;
+            this.lastDay = lastDay;
+        }
+
+        @Override
+        protected TreeMap<Integer, OrderBook.DayPriceData> compute() {
+            if (firstDay == lastDay) {
+                TreeMap<Integer, OrderBook.DayPriceData> result = new TreeMap<>();
+                try {
+                    OrderBook.DayPriceData data = store.aggregateDay(firstDay, from, to);
+                    if (!data.isEmpty()) {
+                        LocalDate start = interval.start(LocalDate.ofEpochDay(firstDay));
+                        result.put(start.getYear() * 10000 + start.getMonthValue() * 100 + start.getDayOfMonth(), data);
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return result;
+            }
+
+            int middle = firstDay + (lastDay - firstDay) / 2;
+            DayRange earlier = new DayRange(store, from, to, interval, firstDay, middle);
+            DayRange later = new DayRange(store, from, to, interval, middle + 1, lastDay);
+            later.fork();
+            TreeMap<Integer, OrderBook.DayPriceData> result = earlier.compute();
+            for (Map.Entry<Integer, OrderBook.DayPriceData> entry : later.join().entrySet()) {
+                OrderBook.DayPriceData data = result.get(entry.getKey());
+                if (data == null) {
+                    result.put(entry.getKey(), entry.getValue());
+                } else {
+                    data.merge(entry.getValue());
+                }
+            }
+            return result;
+        }
+    }
+}
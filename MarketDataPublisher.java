@@ -0,0 +1,278 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+################################################################################
+
+Flusso multicast dei dati di mercato, uguale per tutti: un solo invio raggiunge tutti gli iscritti al gruppo.
+	- i thread di matching, dopo ogni trade, per ogni livello modificato da un comando e dopo ogni comando
+	  che cambia il top of book, copiano l'evento
+	  in un messaggio preso da un pool e lo accodano in una coda limitata; non attendono mai: se il publisher
+	  e' in ritardo e il pool e' vuoto il messaggio viene scartato e contato
+	- il thread del publisher preleva tutti i messaggi pronti, assegna a ciascuno il numero di sequenza successivo
+	  (unico per tutti gli strumenti) e li raccoglie in datagrammi di al massimo DATAGRAM_BYTES
+	- i messaggi scartati consumano comunque i loro numeri di sequenza, per cui gli iscritti vedono un buco
+	  e riallineano i book locali con un'istantanea
+
+Formato binario di un datagramma (big endian):
+	header:   sequenza del primo messaggio (long) | numero di messaggi (short)
+	messaggio: tipo (byte) | lunghezza dello strumento (byte) | strumento (ASCII) | timestamp (int) | campi del tipo
+		TRADE 'T': prezzo (int) | quantita' (int) | lato dell'ordine entrante (byte, 0 = ask, 1 = bid)
+		QUOTE 'Q': best bid (int) | quantita' al best bid (long) | best ask (int) | quantita' al best ask (long)
+		DELTA 'D': aggiornamento (long) | lato (byte) | prezzo (int) | nuova quantita' totale del livello (long, 0 = livello sparito)
+		           | ultimo delta dell'aggiornamento (byte) | livelli N del checksum (byte) | checksum (int)
+	i delta di un comando hanno lo stesso numero di aggiornamento (crescente per strumento, lo stesso riportato da getDepth)
+	e lo stesso checksum CRC32 dei primi N livelli del book dopo l'aggiornamento (vedi BookDepth): un client applica
+	i delta al proprio book locale e all'ultimo delta confronta il checksum, se diverge richiede una nuova istantanea
+	un prezzo 0 indica un lato vuoto; i messaggi di un datagramma hanno sequenze consecutive,
+	per cui l'iscritto rileva un datagramma perso confrontando la sequenza con quella attesa.
+
+################################################################################
+*/
+
+/**
+ * Publisher dei trade e del top of book di tutti gli strumenti su un gruppo multicast UDP.
+ */
+public class MarketDataPublisher implements Runnable {
+
+    public static final byte TRADE = 'T';
+    public static final byte QUOTE = 'Q';
+    public static final byte DELTA = 'D';
+
+    // Dimensione massima di un datagramma, entro l'MTU di Ethernet al netto delle intestazioni IP e UDP
+    static final int DATAGRAM_BYTES = 1400;
+    // Dimensione massima di un messaggio: strumento di al massimo 255 byte e campi del messaggio DELTA
+    static final int MESSAGE_BYTES = 2 + 255 + 4 + 27;
+    // Messaggi prelevati dalla coda e impacchettati insieme
+    static final int BATCH = 256;
+
+    // Evento del book, riusato tramite il pool
+    private static final class Message {
+        byte type;
+        byte[] symbol;
+        int timestamp;
+        int price;
+        int size;
+        byte side;
+        int bid;
+        long bidSize;
+        int ask;
+        long askSize;
+        long quantity;
+        long update;
+        boolean last;
+        int checksum;
+    }
+
+    private final ArrayBlockingQueue<Message> queue;
+    private final ArrayBlockingQueue<Message> pool;
+    private final InetSocketAddress group;
+    private final DatagramChannel channel;
+    private final ByteBuffer datagram = ByteBuffer.allocate(DATAGRAM_BYTES);
+    private final Thread thread;
+    // Livelli per lato coperti dal checksum dei delta
+    private final int depthLevels;
+
+    // Sequenza del prossimo messaggio, usata solo dal thread del publisher
+    private long sequence = 1;
+    // Messaggi scartati dai thread di matching e non ancora riportati come buco nella sequenza
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * Legge dalla configurazione marketdata.group e marketdata.port (gruppo e porta di destinazione),
+     * marketdata.interface (interfaccia di uscita, ad esempio lo per la prova su una sola macchina),
+     * marketdata.ttl (numero di router attraversabili, 1 = rete locale), marketdata.queueSize
+     * e marketdata.depthLevels (livelli per lato coperti dal checksum dei delta).
+     *
+     * @param config Proprieta' del server.
+     * @throws IOException Se il canale UDP non puo' essere aperto o configurato.
+     */
+    public MarketDataPublisher(Properties config) throws IOException {
+        InetAddress address = InetAddress.getByName(config.getProperty("marketdata.group", "239.1.1.1"));
+        if (!address.isMulticastAddress()) {
+            throw new IllegalArgumentException("Indirizzo multicast non valido: " + address);
+        }
+        this.group = new InetSocketAddress(address, Integer.parseInt(config.getProperty("marketdata.port", "12347")));
+
+        this.depthLevels = Math.min(BookDepth.MAX_LEVELS, Integer.parseInt(config.getProperty("marketdata.depthLevels", "10")));
+        int capacity = Integer.parseInt(config.getProperty("marketdata.queueSize", "4096"));
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.pool = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) { pool.offer(new Message()); }
+
+        this.channel = DatagramChannel.open(
+                address.getAddress().length == 4 ? StandardProtocolFamily.INET : StandardProtocolFamily.INET6);
+        String name = config.getProperty("marketdata.interface", "");
+        if (!name.isEmpty()) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if (networkInterface == null) {
+                throw new IllegalArgumentException("Interfaccia di rete non trovata: " + name);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+        }
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.parseInt(config.getProperty("marketdata.ttl", "1")));
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+
+        this.thread = new Thread(this, "market-data");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() { thread.start(); }
+
+    public int getDepthLevels() { return depthLevels; }
+
+    /**
+     * Pubblica un trade. Chiamato dal thread di matching che possiede il book.
+     *
+     * @param symbol Strumento codificato in ASCII, condiviso e non modificato.
+     * @param takerSide Lato dell'ordine entrante.
+     */
+    public void onTrade(byte[] symbol, int timestamp, int price, int size, OrderBook.Side takerSide) {
+        Message message = acquire();
+        if (message == null) { return; }
+        message.type = TRADE;
+        message.symbol = symbol;
+        message.timestamp = timestamp;
+        message.price = price;
+        message.size = size;
+        message.side = takerSide.getCode();
+        enqueue(message);
+    }
+
+    /**
+     * Pubblica il nuovo top of book. Chiamato dal thread di matching che possiede il book.
+     *
+     * @param symbol Strumento codificato in ASCII, condiviso e non modificato.
+     */
+    public void onQuote(byte[] symbol, int timestamp, int bid, long bidSize, int ask, long askSize) {
+        Message message = acquire();
+        if (message == null) { return; }
+        message.type = QUOTE;
+        message.symbol = symbol;
+        message.timestamp = timestamp;
+        message.bid = bid;
+        message.bidSize = bidSize;
+        message.ask = ask;
+        message.askSize = askSize;
+        enqueue(message);
+    }
+
+    /**
+     * Pubblica la nuova quantita' di un livello modificato. Chiamato dal thread di matching che possiede il book.
+     *
+     * @param symbol Strumento codificato in ASCII, condiviso e non modificato.
+     * @param update Numero dell'aggiornamento del book a cui appartiene il delta.
+     * @param last true per l'ultimo delta dell'aggiornamento.
+     * @param checksum Checksum dei primi depthLevels livelli dopo l'aggiornamento.
+     */
+    public void onDelta(byte[] symbol, int timestamp, long update, OrderBook.Side side, int price, long size, boolean last, int checksum) {
+        Message message = acquire();
+        if (message == null) { return; }
+        message.type = DELTA;
+        message.symbol = symbol;
+        message.timestamp = timestamp;
+        message.update = update;
+        message.side = side.getCode();
+        message.price = price;
+        message.quantity = size;
+        message.last = last;
+        message.checksum = checksum;
+        enqueue(message);
+    }
+
+    // Il pool ha la stessa capacita' della coda: e' vuoto solo se la coda e' piena, e allora il messaggio viene scartato
+    private Message acquire() {
+        Message message = pool.poll();
+        if (message == null) { dropped.incrementAndGet(); }
+        return message;
+    }
+
+    // Un messaggio preso dal pool ha sempre posto nella coda
+    private void enqueue(Message message) {
+        queue.offer(message);
+    }
+
+    /**
+     * Codifica lo strumento una sola volta, alla creazione del book.
+     */
+    public static byte[] encodeSymbol(String symbol) {
+        byte[] bytes = symbol.getBytes(StandardCharsets.US_ASCII);
+        if (bytes.length > 255) {
+            throw new IllegalArgumentException("Nome dello strumento troppo lungo: " + symbol);
+        }
+        return bytes;
+    }
+
+    @Override
+    public void run() {
+        List<Message> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH - 1);
+
+            long lost = dropped.getAndSet(0);
+            if (lost > 0) {
+                System.err.println("Dati di mercato scartati (publisher in ritardo): seq " + sequence + "-" + (sequence + lost - 1));
+                sequence += lost;
+            }
+
+            int count = 0;
+            for (Message message : batch) {
+                if (count > 0 && datagram.remaining() < MESSAGE_BYTES) {
+                    send(count);
+                    count = 0;
+                }
+                if (count == 0) {
+                    datagram.clear();
+                    datagram.putLong(sequence).putShort((short) 0);
+                }
+                encode(message);
+                sequence++;
+                count++;
+                message.symbol = null;
+                pool.offer(message);
+            }
+            send(count);
+            batch.clear();
+        }
+    }
+
+    private void encode(Message message) {
+        datagram.put(message.type).put((byte) message.symbol.length).put(message.symbol).putInt(message.timestamp);
+        if (message.type == TRADE) {
+            datagram.putInt(message.price).putInt(message.size).put(message.side);
+        } else if (message.type == QUOTE) {
+            datagram.putInt(message.bid).putLong(message.bidSize).putInt(message.ask).putLong(message.askSize);
+        } else {
+            datagram.putLong(message.update).put(message.side).putInt(message.price).putLong(message.quantity)
+                    .put((byte) (message.last ? 1 : 0)).put((byte) depthLevels).putInt(message.checksum);
+        }
+    }
+
+    // Completa l'header con il numero di messaggi e invia il datagramma al gruppo
+    private void send(int count) {
+        datagram.putShort(8, (short) count).flip();
+        try {
+            channel.send(datagram, group);
+        } catch (IOException e) {
+            // Gli iscritti vedono il buco nella sequenza
+            System.err.println("Errore nell'invio dei dati di mercato (seq " + (sequence - count) + "): " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,283 @@
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+################################################################################
+
+Il MatchingEngine e' l'unico thread che accede agli OrderBook del proprio shard (single writer):
+	- i thread dei client pubblicano i comandi in un ring buffer limitato di slot preallocati
+	- il thread del motore li esegue uno alla volta in ordine di sequenza, sul book indicato dal symbol del comando
+	- il risultato viene scritto nell'ExecutionReport preallocato dello slot, dal quale il thread del client
+	  lo copia nel proprio report (completion slot), per cui un comando non alloca oggetti di risultato
+
+Ogni slot attraversa tre fasi, codificate insieme alla sequenza nel campo state (sequenza * 4 + fase):
+	- FREE: lo slot puo' essere occupato dal produttore che ha ottenuto quella sequenza
+	- PUBLISHED: il comando e' pronto per il motore
+	- COMPLETED: il risultato e' pronto per il produttore, che poi libera lo slot per il giro successivo
+
+Produttori e consumatore si coordinano solo tramite AtomicLong e campi volatile, senza lock.
+
+Quando il thread del motore termina (stop, oppure un Error durante un comando, dopo il quale lo stato dei book
+non e' piu' affidabile) imposta terminated: i produttori in attesa e quelli successivi ricevono un errore
+invece di attendere uno slot che non verra' piu' eseguito.
+
+################################################################################
+*/
+
+/**
+ * Motore di matching a thread singolo alimentato da un ring buffer lock-free.
+ * Espone le stesse operazioni dell'OrderBook, eseguendole sul thread del motore.
+ */
+public class MatchingEngine implements Runnable {
+
+    // Operazioni supportate
+    private static final int INSERT_LIMIT = 1;
+    private static final int INSERT_MARKET = 2;
+    private static final int INSERT_STOP = 3;
+    private static final int CANCEL = 4;
+    private static final int DEPTH = 5;
+
+    // Fasi di uno slot
+    private static final long FREE = 0;
+    private static final long PUBLISHED = 1;
+    private static final long COMPLETED = 2;
+
+    // Numero di attese attive prima di passare a parkNanos
+    private static final int SPIN_TRIES = 200;
+
+    /**
+     * Slot preallocato del ring buffer, contiene sia il comando che il suo risultato.
+     */
+    private static final class Command {
+        volatile long state;
+
+        // Comando
+        int op;
+        String symbol;
+        String owner;
+        OrderBook.Side type;
+        int size;
+        int price;
+        int orderId;
+
+        // Risultato
+        final ExecutionReport report = new ExecutionReport();
+        BookDepth depth; // Istantanea del chiamante, scritta direttamente dal motore
+        Throwable error;
+
+        void clear() {
+            symbol = null;
+            owner = null;
+            type = null;
+            depth = null;
+            report.reset();
+            error = null;
+        }
+    }
+
+    // Order book dello shard per strumento, assegnati alla costruzione e posseduti in esclusiva dal motore
+    private final Map<String, OrderBook> books;
+    private final Command[] ring;
+    private final int mask;
+
+    // Prossima sequenza da assegnare ai produttori
+    private final AtomicLong claimSequence = new AtomicLong(0);
+
+    // Prossima sequenza da eseguire, usata solo dal thread del motore
+    private long consumeSequence = 0;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+    // Impostato dal thread del motore dopo l'ultimo comando completato
+    private volatile boolean terminated = false;
+
+    /**
+     * @param books Order book dello shard, per strumento, posseduti in esclusiva dal motore.
+     * @param ringSize Numero di slot del ring buffer, deve essere una potenza di 2.
+     * @param name Nome del thread del motore.
+     */
+    public MatchingEngine(Map<String, OrderBook> books, int ringSize, String name) {
+        if (ringSize <= 0 || Integer.bitCount(ringSize) != 1) {
+            throw new IllegalArgumentException("La dimensione del ring buffer deve essere una potenza di 2: " + ringSize);
+        }
+        this.books = books;
+        this.ring = new Command[ringSize];
+        this.mask = ringSize - 1;
+        for (int i = 0; i < ringSize; i++) {
+            ring[i] = new Command();
+            ring[i].state = stateOf(i, FREE);
+        }
+        this.thread = new Thread(this, name);
+        this.thread.setDaemon(true);
+    }
+
+    private static long stateOf(long sequence, long phase) { return sequence * 4 + phase; }
+
+    /**
+     * Avvia il thread del motore.
+     */
+    public void start() { thread.start(); }
+
+    /**
+     * Arresta il thread del motore dopo il comando in corso; i comandi non ancora eseguiti falliscono con IOException.
+     */
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    public void insertLimitOrder(String symbol, String owner, OrderBook.Side type, int size, int price, ExecutionReport report) throws IOException {
+        submit(INSERT_LIMIT, symbol, owner, type, size, price, 0, report, null);
+    }
+
+    public void insertMarketOrder(String symbol, String owner, OrderBook.Side type, int size, ExecutionReport report) throws IOException {
+        submit(INSERT_MARKET, symbol, owner, type, size, 0, 0, report, null);
+    }
+
+    public void insertStopOrder(String symbol, String owner, OrderBook.Side type, int size, int stopPrice, ExecutionReport report) throws IOException {
+        submit(INSERT_STOP, symbol, owner, type, size, stopPrice, 0, report, null);
+    }
+
+    public void cancelOrder(String symbol, int orderId, String owner, ExecutionReport report) throws IOException {
+        submit(CANCEL, symbol, owner, null, 0, 0, orderId, report, null);
+    }
+
+    /**
+     * Legge i primi livelli del book sul thread del motore, fra un comando e l'altro.
+     *
+     * @param levels Numero massimo di livelli per lato.
+     * @param report Report su cui scrivere l'esito.
+     * @param depth Istantanea da riscrivere.
+     */
+    public void getDepth(String symbol, int levels, ExecutionReport report, BookDepth depth) throws IOException {
+        submit(DEPTH, symbol, null, null, levels, 0, 0, report, depth);
+    }
+
+    /*
+    Lato produttore:
+        - ottiene una sequenza e attende che il relativo slot sia libero (il ring potrebbe essere pieno)
+        - scrive il comando e lo pubblica
+        - attende il completamento, copia il risultato nel report del chiamante e libera lo slot per il giro successivo
+    */
+    private void submit(int op, String symbol, String owner, OrderBook.Side type, int size, int price, int orderId,
+            ExecutionReport report, BookDepth depth) throws IOException {
+        long sequence = claimSequence.getAndIncrement();
+        Command slot = ring[(int) (sequence & mask)];
+
+        awaitState(slot, stateOf(sequence, FREE));
+        slot.op = op;
+        slot.symbol = symbol;
+        slot.owner = owner;
+        slot.type = type;
+        slot.size = size;
+        slot.price = price;
+        slot.orderId = orderId;
+        slot.depth = depth;
+        slot.state = stateOf(sequence, PUBLISHED);
+        LockSupport.unpark(thread);
+
+        awaitState(slot, stateOf(sequence, COMPLETED));
+        report.copyFrom(slot.report);
+        Throwable error = slot.error;
+        slot.clear();
+        slot.state = stateOf(sequence + ring.length, FREE);
+
+        if (error instanceof IOException) { throw (IOException) error; }
+        if (error instanceof RuntimeException) { throw (RuntimeException) error; }
+        if (error != null) { throw new IOException("Errore nel motore di matching " + thread.getName() + ": " + error, error); }
+    }
+
+    // Il motore scrive lo stato atteso prima di impostare terminated, per cui se terminated e' vero e lo stato
+    // non e' quello atteso lo slot non verra' piu' toccato
+    private void awaitState(Command slot, long expected) throws IOException {
+        int tries = 0;
+        while (slot.state != expected) {
+            if (terminated) {
+                throw new IOException("Motore di matching " + thread.getName() + " arrestato");
+            }
+            if (++tries < SPIN_TRIES) {
+                Thread.onSpinWait();
+            } else {
+                LockSupport.parkNanos(1_000);
+            }
+        }
+    }
+
+    /**
+     * Ciclo del thread del motore: esegue i comandi pubblicati in ordine di sequenza.
+     */
+    @Override
+    public void run() {
+        try {
+            consume();
+        } finally {
+            terminated = true;
+        }
+    }
+
+    private void consume() {
+        int idle = 0;
+        while (running) {
+            Command slot = ring[(int) (consumeSequence & mask)];
+            if (slot.state != stateOf(consumeSequence, PUBLISHED)) {
+                // Nessun comando pronto: attesa attiva breve, poi il thread si sospende fino al prossimo unpark
+                if (++idle < SPIN_TRIES) {
+                    Thread.onSpinWait();
+                } else {
+                    LockSupport.parkNanos(50_000);
+                }
+                continue;
+            }
+            idle = 0;
+
+            boolean fatal = execute(slot);
+            slot.state = stateOf(consumeSequence, COMPLETED);
+            consumeSequence++;
+            if (fatal) { return; }
+        }
+    }
+
+    // Restituisce true se il comando e' fallito con un Error: il motore si arresta, il journal resta la fonte di verita'
+    private boolean execute(Command slot) {
+        try {
+            OrderBook orderbook = books.get(slot.symbol);
+            if (orderbook == null) {
+                throw new IllegalArgumentException("Strumento non gestito da questo motore: " + slot.symbol);
+            }
+
+            switch (slot.op) {
+                case INSERT_LIMIT:
+                    orderbook.insertLimitOrder(slot.owner, slot.type, slot.size, slot.price, slot.report);
+                    break;
+                case INSERT_MARKET:
+                    orderbook.insertMarketOrder(slot.owner, slot.type, slot.size, slot.report);
+                    break;
+                case INSERT_STOP:
+                    orderbook.insertStopOrder(slot.owner, slot.type, slot.size, slot.price, slot.report);
+                    break;
+                case CANCEL:
+                    slot.report.setSuccess(orderbook.cancelOrder(slot.orderId, slot.owner));
+                    break;
+                case DEPTH:
+                    orderbook.fillDepth(slot.size, slot.depth);
+                    slot.report.setSuccess(true);
+                    break;
+                default:
+                    throw new IllegalStateException("Operazione sconosciuta: " + slot.op);
+            }
+            // Dopo i trade del comando, i livelli modificati e il nuovo top of book sul flusso dei dati di mercato
+            orderbook.publishMarketData();
+            // Il client attendera' la durabilita' del journal fino a questo record, fuori dal thread del motore
+            slot.report.setJournalSequence(orderbook.getJournalSequence());
+        } catch (Exception e) {
+            slot.error = e;
+        } catch (Throwable e) {
+            slot.error = e;
+            System.err.println("Errore fatale nel motore di matching " + thread.getName() + ", arresto: " + e);
+            return true;
+        }
+        return false;
+    }
+}
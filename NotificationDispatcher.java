@@ -0,0 +1,232 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+################################################################################
+
+Le notifiche delle esecuzioni sono inviate da un thread dedicato, non dal thread del client che ha inserito l'ordine:
+	- il thread del client codifica ogni notifica una sola volta, in JSON compatto (OrderBook.Trade.encode),
+	  nel buffer di una notifica presa da un pool e la accoda in una coda limitata,
+	  poi risponde subito al client; solo se la coda e' piena attende che il dispatcher la svuoti
+	- il dispatcher preleva dalla coda tutte le notifiche pronte (fino a BATCH) e trova ogni destinatario
+	  dall'username con un accesso all'indice degli utenti; se l'utente e' offline salva gli stessi byte nella sua casella,
+	  altrimenti assegna alla notifica il numero successivo della sessione dell'utente (NotificationSession)
+	  e la aggiunge al datagramma in costruzione per quell'utente
+	- un datagramma raccoglie notifiche consecutive della stessa sessione, fino a DATAGRAM_BYTES (entro l'MTU):
+		{"session":S,"seq":numero della prima,"trades":[ ... ]}
+	  e viene inviato quando e' pieno o alla fine del gruppo, all'indirizzo risolto al login con un unico DatagramChannel
+	- il client confronta "seq" con il numero atteso: un buco viene richiesto via TCP con getNotifications,
+	  per cui un datagramma perso non fa perdere notifiche finche' restano nella finestra di ritrasmissione
+A regime l'accodamento non alloca oggetti ne' stringhe e l'invio non risolve nomi ne' apre socket.
+
+################################################################################
+*/
+
+/**
+ * Thread che invia le notifiche delle esecuzioni ai proprietari degli ordini, alimentato da una coda limitata.
+ */
+public class NotificationDispatcher implements Runnable {
+
+    // Notifica di un trade per il maker o per il taker, gia' codificata e riusata tramite il pool
+    private static final class Notification {
+        final ByteBuffer payload = ByteBuffer.allocate(OrderBook.Trade.NOTIFY_BYTES);
+        String username;
+        int orderId;
+    }
+
+    // Datagramma in costruzione per un utente: notifiche consecutive della stessa sessione
+    private static final class Datagram {
+        final ByteBuffer buffer = ByteBuffer.allocate(DATAGRAM_BYTES);
+        UserManager.UserState state;
+        long session;
+        long first;
+        long next;
+
+        void start(UserManager.UserState state, long session, long seq) {
+            this.state = state;
+            this.session = session;
+            this.first = seq;
+            buffer.clear();
+            CompactJson.putAscii(buffer, "{");
+            CompactJson.putField(buffer, "session", session, true);
+            CompactJson.putField(buffer, "seq", seq, false);
+            CompactJson.putAscii(buffer, ",\"trades\":[");
+        }
+    }
+
+    // Dimensione massima di un datagramma, entro l'MTU di Ethernet al netto delle intestazioni IP e UDP
+    static final int DATAGRAM_BYTES = 1400;
+    // Notifiche prelevate dalla coda e impacchettate insieme
+    static final int BATCH = 256;
+
+    private final ConcurrentHashMap<String, UserManager.UserState> users;
+    private final int udpPort;
+    private final ArrayBlockingQueue<Notification> queue;
+    private final ArrayBlockingQueue<Notification> pool;
+    private final int window;
+    private final DatagramChannel channel;
+    private final Thread thread;
+    // Datagrammi in costruzione durante un gruppo e datagrammi liberi, usati solo dal thread del dispatcher
+    private final List<Datagram> open = new ArrayList<>();
+    private final ArrayDeque<Datagram> free = new ArrayDeque<>();
+
+    /**
+     * @param users Indice degli utenti per username.
+     * @param udpPort Porta UDP su cui i client ricevono le notifiche.
+     * @param capacity Numero massimo di notifiche in attesa di invio.
+     * @param window Notifiche conservate per utente per la ritrasmissione via TCP, almeno 1.
+     * @throws IOException Se il canale UDP non puo' essere aperto.
+     */
+    public NotificationDispatcher(ConcurrentHashMap<String, UserManager.UserState> users, int udpPort, int capacity, int window) throws IOException {
+        if (window < 1) {
+            throw new IllegalArgumentException("Finestra di ritrasmissione non valida (notify.retransmitWindow): " + window);
+        }
+        this.users = users;
+        this.udpPort = udpPort;
+        this.window = window;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.pool = new ArrayBlockingQueue<>(capacity);
+        for (int i = 0; i < capacity; i++) { pool.offer(new Notification()); }
+        this.channel = DatagramChannel.open();
+        this.thread = new Thread(this, "notification-dispatcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() { thread.start(); }
+
+    /**
+     * Accoda le notifiche di tutte le esecuzioni del report, compresi gli stop order attivati a cascata.
+     * Il report puo' essere riusato subito dopo: i trade vengono copiati.
+     *
+     * @param report Report del comando appena eseguito.
+     */
+    public void publish(ExecutionReport report) {
+        for (int i = 0; i < report.getTradeCount(); i++) {
+            OrderBook.Trade trade = report.getTrade(i);
+            enqueue(trade, false);
+            // Il proprietario di uno stop attivato non sta attendendo una risposta, per cui viene notificato anche lui
+            if (trade.getTakerOrderId() != report.getOrderId()) {
+                enqueue(trade, true);
+            }
+        }
+    }
+
+    private void enqueue(OrderBook.Trade trade, boolean toTaker) {
+        try {
+            // Il pool ha la stessa capacita' della coda: e' vuoto solo se la coda e' piena
+            Notification notification = pool.take();
+            notification.username = toTaker ? trade.getTakerOwner() : trade.getMakerOwner();
+            notification.orderId = toTaker ? trade.getTakerOrderId() : trade.getMakerOrderId();
+            notification.payload.clear();
+            trade.encode(notification.payload, !toTaker);
+            notification.payload.flip();
+            queue.put(notification);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Apre la sessione di notifica di un utente che sta effettuando il login
+    public void openSession(UserManager.UserState state) {
+        if (state != null) { state.openSession(window); }
+    }
+
+    @Override
+    public void run() {
+        List<Notification> batch = new ArrayList<>(BATCH);
+        while (true) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.drainTo(batch, BATCH - 1);
+            for (Notification notification : batch) {
+                dispatch(notification);
+                notification.username = null;
+                pool.offer(notification);
+            }
+            for (Datagram datagram : open) {
+                send(datagram);
+                free.push(datagram);
+            }
+            open.clear();
+            batch.clear();
+        }
+    }
+
+    // Salva la notifica nella casella di un utente offline, oppure la numera e la aggiunge al suo datagramma
+    private void dispatch(Notification notification) {
+        String username = notification.username;
+        int orderId = notification.orderId;
+        UserManager.UserState state = users.get(username);
+        if (state == null) { return; }
+        UserManager.User user = state.getUser();
+
+        try {
+            // Un utente offline riceve la notifica nella propria casella, a meno che non abbia appena effettuato il login
+            if (!user.isLogin() && UserManager.writeNotify(user, notification.payload)) {
+                System.out.println("Notifica scritta per: " + username + " per l'ordine: " + orderId);
+                return;
+            }
+        } catch (IOException e) {
+            System.err.println("Errore nel salvare la notifica per: " + username + " per l'ordine: " + orderId);
+            e.printStackTrace();
+            return;
+        }
+
+        NotificationSession session = state.getSession();
+        if (session == null) { return; }
+        long id;
+        long seq;
+        // Identificativo e numero letti insieme: un login concorrente non puo' cambiare sessione nel mezzo
+        synchronized (session) {
+            id = session.getId();
+            seq = session.append(notification.payload);
+        }
+
+        Datagram datagram = null;
+        for (Datagram candidate : open) {
+            if (candidate.state == state) { datagram = candidate; break; }
+        }
+        // Nello stesso datagramma solo notifiche consecutive della stessa sessione, finche' c'e' spazio
+        if (datagram == null) {
+            datagram = free.isEmpty() ? new Datagram() : free.pop();
+            datagram.start(state, id, seq);
+            open.add(datagram);
+        } else if (datagram.session != id || datagram.next != seq
+                || datagram.buffer.remaining() < notification.payload.remaining() + 3) {
+            send(datagram);
+            datagram.start(state, id, seq);
+        } else {
+            datagram.buffer.put((byte) ',');
+        }
+        datagram.buffer.put(notification.payload.duplicate());
+        datagram.next = seq + 1;
+    }
+
+    // Chiude e invia un datagramma
+    private void send(Datagram datagram) {
+        UserManager.User user = datagram.state.getUser();
+        long first = datagram.first;
+        try {
+            datagram.buffer.put((byte) ']').put((byte) '}').flip();
+            if (user.getAddress() != null) {
+                channel.send(datagram.buffer, new InetSocketAddress(user.getAddress(), udpPort));
+                System.out.println("Notifiche inviate a: " + user.getUsername() + " (seq " + first + "-" + (datagram.next - 1) + ")");
+            }
+        } catch (IOException e) {
+            // Le notifiche restano nella finestra di ritrasmissione della sessione
+            System.err.println("Errore nell'inviare le notifiche a: " + user.getUsername() + " (seq " + first + "-" + (datagram.next - 1) + ")");
+            e.printStackTrace();
+        }
+        datagram.state = null;
+    }
+}
@@ -0,0 +1,151 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+################################################################################
+
+Le notifiche per gli utenti offline sono salvate in una casella per utente, nella cartella mailbox:
+	- <username in esadecimale>.mbox: una notifica JSON per riga, aggiunta in fondo al file con un'unica scrittura,
+	  per cui il costo non dipende ne' dal numero di utenti ne' dalle notifiche gia' presenti
+	- al login la casella viene staccata rinominandola in <username>.<sequenza>.drain, poi letta una sola volta
+	  in sequenza e inviata al client in pagine di PAGE_SIZE notifiche:
+		{"notifications": [ ... ], "more": true|false}
+	  l'ultima pagina ha more = false; i file sono cancellati solo dopo l'invio dell'ultima pagina,
+	  per cui una connessione persa durante l'invio ripresenta le stesse notifiche al login successivo
+Il nome in esadecimale rende valido come nome di file qualunque username.
+
+################################################################################
+*/
+
+/**
+ * Caselle delle notifiche differite per gli utenti offline, una per utente.
+ * Aggiunta e distacco di una casella vanno eseguiti con il lock dell'utente (vedi UserManager.writeNotify e login).
+ */
+public class NotificationMailbox {
+
+    // Notifiche per pagina inviata al client durante il login
+    static final int PAGE_SIZE = 100;
+
+    // Ogni notifica e' salvata su una riga, un oggetto "trades" con le notifiche codificate da OrderBook.Trade.encode
+    private static final byte[] PREFIX = "{\"trades\":[".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] SUFFIX = "]}\n".getBytes(StandardCharsets.UTF_8);
+
+    private final File directory;
+
+    /**
+     * @param directory Cartella delle caselle, creata se non esiste.
+     */
+    public NotificationMailbox(File directory) {
+        this.directory = directory;
+        if (!directory.exists() && !directory.mkdirs()) {
+            System.err.println("Impossibile creare la cartella delle notifiche: " + directory);
+        }
+    }
+
+    private static String nameOf(String username) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : username.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0x0f, 16)).append(Character.forDigit(b & 0x0f, 16));
+        }
+        return name.toString();
+    }
+
+    /**
+     * Aggiunge una notifica in fondo alla casella dell'utente.
+     *
+     * @param username Destinatario.
+     * @param json Notifica codificata con OrderBook.Trade.encode; il buffer viene consumato.
+     * @throws IOException Se la scrittura fallisce.
+     */
+    public void append(String username, ByteBuffer json) throws IOException {
+        try (FileChannel channel = FileChannel.open(new File(directory, nameOf(username) + ".mbox").toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            ByteBuffer[] record = { ByteBuffer.wrap(PREFIX), json, ByteBuffer.wrap(SUFFIX) };
+            while (record[2].hasRemaining()) { channel.write(record); }
+        }
+    }
+
+    /**
+     * Stacca la casella dell'utente, per cui le notifiche successive finiscono in una casella nuova.
+     *
+     * @param username Utente che sta effettuando il login.
+     * @return true se ci sono notifiche da inviare, comprese quelle di un invio precedente interrotto.
+     * @throws IOException Se la casella non puo' essere rinominata.
+     */
+    public boolean detach(String username) throws IOException {
+        File mailbox = new File(directory, nameOf(username) + ".mbox");
+        if (mailbox.exists()) {
+            File drain = new File(directory, nameOf(username) + "." + System.nanoTime() + ".drain");
+            Files.move(mailbox.toPath(), drain.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return drainFiles(username).length > 0;
+    }
+
+    // Caselle staccate dell'utente, in ordine di distacco
+    private File[] drainFiles(String username) {
+        String prefix = nameOf(username) + ".";
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".drain"));
+        if (files == null) { return new File[0]; }
+        Arrays.sort(files, (a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+        return files;
+    }
+
+    private static long sequenceOf(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(name.indexOf('.') + 1, name.lastIndexOf('.')));
+    }
+
+    /**
+     * Invia al client le notifiche staccate al login, in pagine, leggendo ogni casella una sola volta.
+     *
+     * @param username Utente destinatario.
+     * @param out Stream della connessione TCP del client.
+     * @return Numero di notifiche inviate.
+     * @throws IOException Se una casella non puo' essere letta o cancellata.
+     */
+    public int drain(String username, PrintWriter out) throws IOException {
+        File[] files = drainFiles(username);
+        List<String> page = new ArrayList<>(PAGE_SIZE);
+        int sent = 0;
+
+        for (File file : files) {
+            try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) { continue; }
+                    // La pagina piena viene inviata solo quando si sa che ne segue un'altra
+                    if (page.size() == PAGE_SIZE) {
+                        sendPage(out, page, true);
+                        sent += page.size();
+                        page.clear();
+                    }
+                    page.add(line);
+                }
+            }
+        }
+        sendPage(out, page, false);
+        sent += page.size();
+
+        if (out.checkError()) {
+            throw new IOException("Connessione interrotta durante l'invio delle notifiche di " + username);
+        }
+        for (File file : files) { Files.deleteIfExists(file.toPath()); }
+        return sent;
+    }
+
+    private static void sendPage(PrintWriter out, List<String> page, boolean more) {
+        out.println("{\"notifications\": [" + String.join(", ", page) + "], \"more\": " + more + "}");
+        out.flush();
+    }
+}
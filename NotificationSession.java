@@ -0,0 +1,85 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+################################################################################
+
+Flusso sequenziato delle notifiche UDP di un utente, aperto ad ogni login:
+	- ogni sessione ha un identificativo diverso e numera le notifiche da 1, senza buchi
+	- le ultime window notifiche restano in un buffer circolare di slot preallocati (una notifica codificata per slot),
+	  da cui vengono ritrasmesse via TCP quando il client rileva un buco nella sequenza (comando getNotifications):
+		{"session":S,"seq":primo,"last":ultima assegnata,"trades":[ ... ]}
+	  se il primo numero restituito e' maggiore di quello richiesto, le notifiche precedenti sono uscite dal buffer
+Il dispatcher aggiunge le notifiche, il thread del client le rilegge: l'accesso e' sincronizzato sulla sessione.
+
+################################################################################
+*/
+
+/**
+ * Sessione di notifica di un utente: numeri di sequenza e finestra di ritrasmissione.
+ */
+public class NotificationSession {
+
+    // Gli identificativi partono dall'ora di avvio, per cui restano diversi anche dopo un riavvio del server
+    private static final AtomicLong ids = new AtomicLong(System.currentTimeMillis());
+
+    private final ByteBuffer[] slots;
+    private long id;
+    private long next;
+
+    /**
+     * @param window Numero di notifiche conservate per la ritrasmissione.
+     */
+    public NotificationSession(int window) {
+        this.slots = new ByteBuffer[window];
+        for (int i = 0; i < window; i++) { slots[i] = ByteBuffer.allocate(OrderBook.Trade.NOTIFY_BYTES); }
+        reset();
+    }
+
+    /**
+     * Apre una nuova sessione: nuovo identificativo e sequenza che riparte da 1.
+     */
+    public synchronized void reset() {
+        this.id = ids.incrementAndGet();
+        this.next = 1;
+    }
+
+    public synchronized long getId() { return id; }
+
+    /**
+     * Assegna il numero di sequenza successivo a una notifica e la conserva per la ritrasmissione.
+     *
+     * @param trade Notifica codificata (un oggetto JSON), la posizione non viene modificata.
+     * @return Numero di sequenza assegnato.
+     */
+    public synchronized long append(ByteBuffer trade) {
+        long seq = next++;
+        ByteBuffer slot = slots[(int) (seq % slots.length)];
+        slot.clear();
+        slot.put(trade.duplicate());
+        slot.flip();
+        return seq;
+    }
+
+    /**
+     * Notifiche della sessione corrente nell'intervallo richiesto, limitate a quelle ancora conservate.
+     *
+     * @param from Primo numero di sequenza richiesto.
+     * @param to Ultimo numero di sequenza richiesto (incluso).
+     * @return Risposta JSON su una riga.
+     */
+    public synchronized String replay(long from, long to) {
+        long last = next - 1;
+        long first = Math.max(from, Math.max(1, next - slots.length));
+        StringBuilder json = new StringBuilder(64 + OrderBook.Trade.NOTIFY_BYTES * 4);
+        json.append("{\"session\":").append(id).append(",\"seq\":").append(first)
+            .append(",\"last\":").append(last).append(",\"trades\":[");
+        for (long seq = first; seq <= Math.min(to, last); seq++) {
+            ByteBuffer slot = slots[(int) (seq % slots.length)];
+            if (seq > first) { json.append(','); }
+            json.append(new String(slot.array(), 0, slot.limit(), StandardCharsets.UTF_8));
+        }
+        return json.append("]}").toString();
+    }
+}
@@ -1,36 +1,40 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
-import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.time.ZoneId;
-import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
 import java.util.Map;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.annotations.SerializedName;
 
 
 /*
 ################################################################################
 
-L'orderBook sara' strutturato come ConcurrentSkipListMap priceSegments, nel quale ci sara' l'insieme delle offerte attive aggiornate all'ultimo ordine
+L'orderBook sara' strutturato come due PriceLadder, bidSegments e askSegments, nei quali ci sara' l'insieme delle offerte attive aggiornate all'ultimo ordine
 	- come chiave ci sara' il prezzo dell'asset
 	- come valore ci sara' l'insieme degli ordini
-		- gli ordini saranno rappresentati come oggetti offers ordinati FIFO
+		- gli ordini saranno rappresentati come oggetti offers ordinati FIFO in un PriceLevel, collegati tra loro tramite i campi prev/next
+		- ogni PriceLevel mantiene la quantita' totale e il numero di ordini, per cui la profondita' di un livello si legge in O(1)
+	- bidSegments e' ordinato per prezzo decrescente, askSegments per prezzo crescente: il primo livello di ognuno e' il miglior prezzo del lato
+	- il ladder puo' essere una skip list (prezzi illimitati) o un array indicizzato per tick (banda di prezzo limitata), scelto in server_config.properties
+	- bestBid e bestAsk tengono in cache il top of book, aggiornato quando un livello compare o si svuota
 
 L'orderBook contiene una classe Order contenente dei metodi che descrivono le principali funzionalita' offerte dal servizio CROSS.
-L'orderBook contiene inoltre la struttura, stopOrders necessaria per tenere traccia dinamicamente degli stopOrders, verificandone le condizioni ad ogni aggiornamento di priceSegments
+L'orderBook contiene inoltre i ladder buyStops e sellStops, ordinati per prezzo di attivazione, per tenere traccia degli stop order:
+	- dopo ogni trade si estraggono dalla testa dei ladder solo gli stop attivati dall'ultimo prezzo (lastPrice)
+	- ogni stop attivato viene eseguito come ordine di mercato e i suoi trade possono attivarne altri, fino ad esaurimento
+Ogni orderBook gestisce un solo strumento (symbol) ed e' modificato solo dal thread del MatchingEngine a cui e' assegnato,
+per cui le strutture interne non usano lock.
+L'indice restingOrders associa ad ogni orderId l'ordine ancora attivo: e' l'unico riferimento usato per la cancellazione e per verificare il proprietario
+Gli ordini sono presi da un OrderPool e vi ritornano quando escono dal book, i risultati di ogni comando sono scritti in un ExecutionReport
+fornito dal chiamante, per cui il percorso di matching non alloca oggetti per ordine
 
 ################################################################################
 */
@@ -42,72 +46,332 @@ L'orderBook contiene inoltre la struttura, stopOrders necessaria per tenere trac
  */
 public class OrderBook {
     
-	// Struttura dati per gestire gli ordini per prezzo in modo thread-safe
-	private final static ConcurrentSkipListMap<Integer, LinkedList<Order>> priceSegments = new ConcurrentSkipListMap<>(Comparator.reverseOrder());
+	// Lato acquisto: livelli di prezzo in ordine decrescente (il primo e' il best bid)
+	private final PriceLadder bidSegments;
 
-    // Lista per gestire gli ordini di tipo "stop"
-    private final LinkedList<Order> stopOrders = new LinkedList<>();
-    
-    // Lock per gestire l'accesso concorrente agli ordini
-	private final ReentrantLock lock = new ReentrantLock();
+	// Lato vendita: livelli di prezzo in ordine crescente (il primo e' il best ask)
+	private final PriceLadder askSegments;
+
+	// Migliori prezzi correnti (0 se il lato e' vuoto), aggiornati quando un livello viene creato o svuotato
+	private volatile int bestBid = 0;
+	private volatile int bestAsk = 0;
+
+    // Stop order in attesa per prezzo di attivazione: buy stop in ordine crescente, sell stop in ordine decrescente,
+    // cosi' gli stop attivati dall'ultimo prezzo sono sempre in testa
+    private final PriceLadder buyStops;
+    private final PriceLadder sellStops;
+
+    // Dati giornalieri dei trade, letti da getPriceHistory
+    private final PriceHistory priceHistory = new PriceHistory();
+
+    // Prezzo dell'ultimo trade eseguito (0 se non ci sono ancora stati trade)
+    private volatile int lastPrice = 0;
+
+    // Indice primario orderId -> ordine attivo (limit nel book o stop in attesa), ogni ordine conosce il proprio livello e lato
+    private final OrderIndex restingOrders = new OrderIndex(1024);
+
+    // Ordini riciclati: quelli eseguiti o cancellati tornano nel pool invece di essere lasciati al garbage collector
+    private final OrderPool pool;
     
-	// Percorso e nome del file per la persistenza degli ordini
+	// Strumento negoziato in questo book
+	private final String symbol;
+
+	// Percorso e nome del journal degli ordini e dei trade, uno per ogni strumento
     private static final String PATH_FILE = mainServer.class.getProtectionDomain().getCodeSource().getLocation().getPath();
-    private static final String NAME_FILE_ORDERS = "ordersServer.json";
-	static File file = new File(PATH_FILE, NAME_FILE_ORDERS);
+    private final String nameFileOrders;
+	private final File file;
+	private final File snapshotFile;
+	private final TradeStore tradeStore;
+	private OrderJournal journal;
+	private Snapshotter snapshotter;
+	private TradeCompactor compactor;
+
+	// Flusso multicast dei dati di mercato (null se disattivato) e ultimo top of book pubblicato
+	private MarketDataPublisher marketData;
+	// Osservatore degli ordini attivi per utente (null se non collegato)
+	private OpenOrderListener openOrders;
+	private final byte[] encodedSymbol;
+	private int quotedBid = 0;
+	private long quotedBidSize = 0;
+	private int quotedAsk = 0;
+	private long quotedAskSize = 0;
+
+	// Primi livelli del book dopo l'ultimo aggiornamento pubblicato e dopo quello in corso, scambiati ad ogni aggiornamento
+	private BookDepth publishedDepth = new BookDepth();
+	private BookDepth feedDepth = new BookDepth();
+	// Livelli modificati dal comando in corso (lato e prezzo), pubblicati come delta alla fine del comando
+	private Side[] dirtySides = new Side[16];
+	private int[] dirtyPrices = new int[16];
+	private int dirtyCount = 0;
+	// Numero dell'ultimo aggiornamento dei livelli, riportato nei delta e nelle istantanee di getDepth
+	private long depthUpdate = 0;
+
+    /**
+     * Crea un order book con lati e stop basati su skip list, senza limiti di prezzo.
+     *
+     * @param symbol Strumento negoziato nel book.
+     */
+    public OrderBook(String symbol) {
+    	this(symbol, new PriceLadder.SkipListLadder(true), new PriceLadder.SkipListLadder(false),
+    			new PriceLadder.SkipListLadder(false), new PriceLadder.SkipListLadder(true), 0);
+    }
 
     /**
-     * Inizializza la cronologia degli ordini creando il file di persistenza se non esiste.
+     * Crea un order book con i lati indicati.
+     *
+     * @param symbol Strumento negoziato nel book.
+     * @param bidSegments Lato acquisto, ordinato per prezzo decrescente.
+     * @param askSegments Lato vendita, ordinato per prezzo crescente.
+     * @param buyStops Buy stop in attesa, ordinati per prezzo di attivazione crescente.
+     * @param sellStops Sell stop in attesa, ordinati per prezzo di attivazione decrescente.
+     * @param poolSize Numero di ordini preallocati nel pool.
      */
-    public static void setUpOrderHistory() {
-    	
-    	if (!file.exists()) { file = utilities.createFile(PATH_FILE, NAME_FILE_ORDERS); } 
+    public OrderBook(String symbol, PriceLadder bidSegments, PriceLadder askSegments,
+    		PriceLadder buyStops, PriceLadder sellStops, int poolSize) {
+    	this.symbol = symbol;
+    	this.bidSegments = bidSegments;
+    	this.askSegments = askSegments;
+    	this.buyStops = buyStops;
+    	this.sellStops = sellStops;
+    	this.pool = new OrderPool(poolSize);
+    	this.nameFileOrders = "ordersServer_" + symbol + ".journal";
+    	this.file = new File(PATH_FILE, nameFileOrders);
+    	this.snapshotFile = new File(PATH_FILE, "ordersServer_" + symbol + ".snapshot");
+    	this.tradeStore = new TradeStore(new File(PATH_FILE, "trades_" + symbol));
+    	this.encodedSymbol = MarketDataPublisher.encodeSymbol(symbol);
     }
+
+    /**
+     * Crea un order book scegliendo il tipo di ladder dalla configurazione del server (chiave orderbook.ladder),
+     * usato sia per i lati del book che per gli stop, e la dimensione del pool di ordini (chiave orderbook.poolSize).
+     *
+     * @param config Proprieta' del server.
+     * @param symbol Strumento negoziato nel book.
+     * @return Il nuovo order book.
+     */
+    public static OrderBook fromConfig(Properties config, String symbol) {
+    	return new OrderBook(symbol,
+    			PriceLadder.fromConfig(config, true), PriceLadder.fromConfig(config, false),
+    			PriceLadder.fromConfig(config, false), PriceLadder.fromConfig(config, true),
+    			Integer.parseInt(config.getProperty("orderbook.poolSize", "0")));
+    }
+
+    public String getSymbol() { return symbol; }
+
+    /**
+     * Inizializza la cronologia degli ordini dello strumento e ripristina il book dopo un riavvio:
+     *	- carica l'ultimo snapshot e rilegge solo la coda del journal successiva
+     *	- ricrea ordini nel book e stop in attesa, ultimo prezzo, contatore degli ID e dati giornalieri dei prezzi
+     *	- scarta un eventuale record incompleto in fondo al journal e lo riapre in append
+     *	- allinea il TradeStore ai trade del journal, poi il thread di scrittura del journal lo aggiorna ad ogni blocco
+     *	- avvia il thread che aggiorna lo snapshot ogni snapshot.intervalSeconds secondi
+     *	- avvia il thread che archivia i giorni di trade chiusi ogni archive.intervalSeconds secondi
+     * Va chiamato prima di avviare il MatchingEngine del book.
+     *
+     * @param config Proprieta' del server (journal.durability, journal.bufferSize, snapshot.intervalSeconds).
+     * @throws IOException Se snapshot o journal non possono essere letti o aperti.
+     */
+    public void setUpOrderHistory(Properties config) throws IOException {
+    	BookSnapshot state = BookSnapshot.load(snapshotFile);
+    	if (state.getJournalPosition() > file.length()) {
+    		// Lo snapshot segue record del journal non resi durevoli prima dell'arresto: si ricostruisce dall'inizio
+    		System.err.println("Snapshot " + snapshotFile + " oltre la fine del journal, ricostruzione completa");
+    		state = new BookSnapshot();
+    	}
+    	state.catchUp(file);
+    	OrderJournal.truncate(file, state.getJournalPosition());
+    	restore(state);
+    	tradeStore.open(file);
+
+    	journal = new OrderJournal(file, OrderJournal.Durability.fromConfig(config),
+    			Integer.parseInt(config.getProperty("journal.bufferSize", "1048576")), tradeStore);
+    	snapshotter = new Snapshotter(state, file, snapshotFile,
+    			Integer.parseInt(config.getProperty("snapshot.intervalSeconds", "60")));
+    	snapshotter.start();
+    	compactor = new TradeCompactor(tradeStore, symbol,
+    			Integer.parseInt(config.getProperty("archive.intervalSeconds", "300")));
+    	compactor.start();
+    }
+
+    // Ricrea nel book gli ordini attivi dello stato, nell'ordine di ingresso, per cui la priorita' FIFO dei livelli e' preservata
+    private void restore(BookSnapshot state) {
+    	for (Order saved : state.getOrders()) {
+    		Order order = pool.acquire().restore(saved.getOrderId(), saved.getOwner(), saved.getType(),
+    				saved.getOrderType(), saved.getSize(), saved.getPrice(), saved.getTimestamp());
+    		if (order.getOrderType() == OrderType.STOP) {
+    			restStop(order);
+    		} else {
+    			restOrder(order);
+    		}
+    	}
+    	lastPrice = state.getLastPrice();
+    	priceHistory.copyFrom(state.getPriceHistory());
+    	Order.advanceOrderId(state.getMaxOrderId());
+    	if (restingOrders.size() > 0) {
+    		System.out.println(symbol + ": ripristinati " + restingOrders.size() + " ordini attivi");
+    	}
+    }
+
+    /**
+     * Collega il book al flusso multicast dei dati di mercato. Va chiamato prima di avviare il MatchingEngine del book.
+     *
+     * @param marketData Publisher dei trade e del top of book.
+     */
+    public void setMarketData(MarketDataPublisher marketData) { this.marketData = marketData; }
+
+    /**
+     * Osservatore degli ordini che entrano ed escono dal book, usato per tenere gli ordini attivi di ogni utente.
+     * I metodi sono chiamati dal thread del MatchingEngine del book e non devono bloccare.
+     */
+    public interface OpenOrderListener {
+    	void onOpen(String owner, int orderId);
+    	void onClose(String owner, int orderId);
+    }
+
+    /**
+     * Collega l'osservatore degli ordini attivi. Va chiamato prima di setUpOrderHistory, cosi' anche gli ordini ripristinati sono registrati.
+     *
+     * @param openOrders Osservatore da notificare.
+     */
+    public void setOpenOrderListener(OpenOrderListener openOrders) { this.openOrders = openOrders; }
+
+    /**
+     * Pubblica i dati di mercato prodotti dal comando appena eseguito. Chiamato dal thread del MatchingEngine dopo ogni comando:
+     *	- un delta (lato, prezzo, nuova quantita' totale, 0 se il livello e' sparito) per ogni livello modificato,
+     *	  con il numero dell'aggiornamento e il checksum dei primi livelli del book dopo l'aggiornamento
+     *	- un delta anche per ogni livello non modificato entrato tra i primi livelli (ad esempio quando si svuota
+     *	  il miglior livello): il client conosce solo i livelli dell'istantanea e quelli ricevuti nei delta
+     *	- il top of book (prezzo e quantita' totale del miglior livello di ogni lato) se e' cambiato dall'ultima pubblicazione
+     */
+    public void publishMarketData() {
+    	if (marketData == null) { return; }
+    	if (dirtyCount > 0) {
+    		depthUpdate++;
+    		int checksum = fillDepth(marketData.getDepthLevels(), feedDepth);
+    		markEntered(Side.BID);
+    		markEntered(Side.ASK);
+    		BookDepth published = publishedDepth;
+    		publishedDepth = feedDepth;
+    		feedDepth = published;
+    		int timestamp = (int) (System.currentTimeMillis() / 1000);
+    		for (int i = 0; i < dirtyCount; i++) {
+    			marketData.onDelta(encodedSymbol, timestamp, depthUpdate, dirtySides[i], dirtyPrices[i],
+    					getSizeOffersByPrice(dirtySides[i], dirtyPrices[i]), i == dirtyCount - 1, checksum);
+    			dirtySides[i] = null;
+    		}
+    		dirtyCount = 0;
+    	}
+
+    	int bid = bestBid;
+    	int ask = bestAsk;
+    	long bidSize = getSizeOffersByPrice(Side.BID, bid);
+    	long askSize = getSizeOffersByPrice(Side.ASK, ask);
+    	if (bid == quotedBid && ask == quotedAsk && bidSize == quotedBidSize && askSize == quotedAskSize) { return; }
+    	quotedBid = bid;
+    	quotedBidSize = bidSize;
+    	quotedAsk = ask;
+    	quotedAskSize = askSize;
+    	marketData.onQuote(encodedSymbol, (int) (System.currentTimeMillis() / 1000), bid, bidSize, ask, askSize);
+    }
+
+    /**
+     * Scrive nell'istantanea i primi livelli di ogni lato, dal migliore, con le quantita' totali dei livelli.
+     * Va chiamato dal thread del MatchingEngine.
+     *
+     * @param levels Numero massimo di livelli per lato (al massimo BookDepth.MAX_LEVELS).
+     * @param depth Istantanea da riscrivere.
+     * @return Il checksum dei livelli scritti.
+     */
+    public int fillDepth(int levels, BookDepth depth) {
+    	levels = Math.min(levels, BookDepth.MAX_LEVELS);
+    	depth.clear(symbol, depthUpdate);
+    	for (int price = bidSegments.bestPrice(); price != 0 && depth.getBidCount() < levels; price = bidSegments.nextPrice(price)) {
+    		depth.addBid(price, bidSegments.level(price).getTotalSize());
+    	}
+    	for (int price = askSegments.bestPrice(); price != 0 && depth.getAskCount() < levels; price = askSegments.nextPrice(price)) {
+    		depth.addAsk(price, askSegments.level(price).getTotalSize());
+    	}
+    	return depth.seal();
+    }
+
+    // Registra come modificati i livelli di un lato entrati tra i primi dopo il comando, assenti dall'ultimo aggiornamento pubblicato.
+    // Entrambe le istantanee sono ordinate dal miglior prezzo, per cui basta scorrerle insieme
+    private void markEntered(Side side) {
+    	boolean bid = side == Side.BID;
+    	int count = bid ? feedDepth.getBidCount() : feedDepth.getAskCount();
+    	int previousCount = bid ? publishedDepth.getBidCount() : publishedDepth.getAskCount();
+    	int j = 0;
+    	for (int i = 0; i < count; i++) {
+    		int price = bid ? feedDepth.getBidPrice(i) : feedDepth.getAskPrice(i);
+    		while (j < previousCount && isBetter(side, bid ? publishedDepth.getBidPrice(j) : publishedDepth.getAskPrice(j), price)) { j++; }
+    		if (j == previousCount || (bid ? publishedDepth.getBidPrice(j) : publishedDepth.getAskPrice(j)) != price) {
+    			markDirty(side, price);
+    		}
+    	}
+    }
+
+    private static boolean isBetter(Side side, int price, int other) {
+    	return side == Side.BID ? price > other : price < other;
+    }
+
+    // Registra un livello modificato dal comando in corso, una sola volta, se il flusso dei dati di mercato e' attivo
+    private void markDirty(Side side, int price) {
+    	if (marketData == null) { return; }
+    	for (int i = 0; i < dirtyCount; i++) {
+    		if (dirtyPrices[i] == price && dirtySides[i] == side) { return; }
+    	}
+    	if (dirtyCount == dirtyPrices.length) {
+    		dirtyPrices = Arrays.copyOf(dirtyPrices, dirtyCount * 2);
+    		dirtySides = Arrays.copyOf(dirtySides, dirtyCount * 2);
+    	}
+    	dirtySides[dirtyCount] = side;
+    	dirtyPrices[dirtyCount++] = price;
+    }
+
+    /**
+     * @return La sequenza dell'ultimo record accodato al journal, letta dal thread del MatchingEngine dopo ogni comando.
+     */
+    public long getJournalSequence() { return journal.getAppendedSequence(); }
+
+    /**
+     * Attende che il journal abbia reso durevoli i record fino alla sequenza indicata.
+     *
+     * @param sequence Sequenza restituita da getJournalSequence.
+     * @throws IOException Se la scrittura del journal e' fallita.
+     */
+    public void awaitDurable(long sequence) throws IOException { journal.awaitDurable(sequence); }
     
     /**
-     * Metodo per recuperare la cronologia dei prezzi in un determinato mese.
+     * Metodo per recuperare la cronologia dei prezzi dello strumento in un determinato mese.
+     * I dati giornalieri sono mantenuti ad ogni trade, per cui la richiesta legge al piu' 31 giorni gia' calcolati
+     * e puo' essere eseguita fuori dal thread del MatchingEngine.
      * 
      * @param month Mese per cui recuperare i dati (valore numerico tra 1 e 12).
-     * @return Mappa che associa i giorni del mese ai dati dei prezzi (apertura, chiusura, massimo, minimo).
+     * @param year Anno del mese richiesto.
+     * @return Mappa che associa i giorni del mese ai dati dei prezzi (apertura, chiusura, massimo, minimo, volume).
      */
-    public static Map<Integer, DayPriceData> getPriceHistory(int month) {
-        Gson gson = new Gson();
-        List<Order> listOrders = null;
-        Map<Integer, DayPriceData> priceHistory = new HashMap<>();
-
-        try (FileReader reader = new FileReader(file)) {
-            Type orderListType = new TypeToken<List<Order>>() {}.getType();
-            listOrders = gson.fromJson(reader, orderListType);
-
-            if (listOrders != null) {
-                for (Order order : listOrders) {
-                    if (order != null) { // Verifica che l'ordine non sia null
-                        Instant instant = Instant.ofEpochSecond(order.getTimestamp());
-                        int orderMonth = instant.atZone(ZoneId.of("GMT")).getMonthValue();
-                        int orderDay = instant.atZone(ZoneId.of("GMT")).getDayOfMonth();
-
-                        // Considera solo gli ordini del mese richiesto
-                        if (orderMonth == month) {
-                            // Recupera o inizializza i dati per il giorno specifico
-                            DayPriceData dayData = priceHistory.computeIfAbsent(orderDay, k -> new DayPriceData());
-
-                            // Aggiorna i valori di apertura, chiusura, massimo e minimo
-                            dayData.update(order.getPrice());
-                        }
-                    }
-                }
-            } else {
-                System.err.println("La lista degli ordini è nulla.");
-            }
-        } catch (IOException e) {
-            System.err.println("Errore durante la lettura del file: " + e.getMessage());
-            e.printStackTrace();
-        }
-
-        return priceHistory;
+    public Map<Integer, DayPriceData> getPriceHistory(int month, int year) {
+        return priceHistory.getMonth(year, month);
     }
 
+    /**
+     * Calcola la cronologia dei prezzi di un intervallo raggruppata per periodo, in parallelo sul pool delle interrogazioni.
+     *
+     * @param from Inizio dell'intervallo (secondi dall'epoch, incluso).
+     * @param to Fine dell'intervallo (secondi dall'epoch, incluso).
+     * @param interval Ampiezza dei periodi (giorno, settimana, mese, anno).
+     * @param query Pool su cui eseguire l'interrogazione.
+     * @return Mappa ordinata che associa il primo giorno del periodo (yyyyMMdd) ai dati dei prezzi del periodo.
+     * @throws IOException Se la lettura dei segmenti fallisce.
+     */
+    public Map<Integer, DayPriceData> getPriceHistory(int from, int to, HistoryQuery.Interval interval, HistoryQuery query) throws IOException {
+        return query.aggregate(tradeStore, from, to, interval);
+    }
 
+    /**
+     * @return Identificativo dell'ultimo trade registrato nel TradeStore, cambia ad ogni nuovo trade.
+     */
+    public long getTradeVersion() { return tradeStore.getLastTradeId(); }
 
     
     public int getDayOfMonth(Order o) {
@@ -116,384 +380,311 @@ public class OrderBook {
                       .getDayOfMonth();
     }
 
-    
+    // Accoda l'ordine al journal dello strumento, con un costo indipendente dalla cronologia gia' scritta
     public void updateFileOrders(Order order) throws IOException {
-		utilities.ThreadSafeFileWriter(file, order, Order.class);
+		journal.appendOrder(order);
+	}
+
+    /**
+     * Restituisce il miglior prezzo di acquisto presente nel book.
+     *
+     * @return Il best bid, oppure 0 se non ci sono offerte di acquisto.
+     */
+	public int getBestBid() { return bestBid; }
+
+    /**
+     * Restituisce il miglior prezzo di vendita presente nel book.
+     *
+     * @return Il best ask, oppure 0 se non ci sono offerte di vendita.
+     */
+	public int getBestAsk() { return bestAsk; }
+
+    /**
+     * Restituisce il prezzo dell'ultimo trade eseguito.
+     *
+     * @return L'ultimo prezzo, oppure 0 se non ci sono ancora stati trade.
+     */
+	public int getLastPrice() { return lastPrice; }
+
+	// Restituisce il lato del book su cui riposano gli ordini del tipo indicato
+	private PriceLadder segmentsOf(Side side) {
+		return side == Side.BID ? bidSegments : askSegments;
+	}
+
+	// Ricalcola il best price di un lato dopo che un livello e' comparso o si e' svuotato
+	private void refreshBest(Side side) {
+		int best = segmentsOf(side).bestPrice();
+		if (side == Side.BID) { bestBid = best; } else { bestAsk = best; }
+	}
+
+	// Piazza un ordine sul proprio lato del book, creando il livello di prezzo se non esiste
+	private void restOrder(Order order) {
+		PriceLevel offers = segmentsOf(order.getType()).levelForInsert(order.getPrice());
+		offers.add(order);
+		trackOpen(order);
+		markDirty(order.getType(), order.getPrice());
+
+		// Un nuovo livello puo' diventare il nuovo top of book
+		if (offers.getOrderCount() == 1) { refreshBest(order.getType()); }
+	}
+
+	// Restituisce il ladder degli stop order del tipo indicato
+	private PriceLadder stopsOf(Side side) {
+		return side == Side.BID ? buyStops : sellStops;
+	}
+
+	// Rimuove un livello di prezzo svuotato e aggiorna il best price del lato
+	private void removeLevel(Side side, int price) {
+		segmentsOf(side).removeLevel(price);
+		refreshBest(side);
 	}
-	
 
     /**
      * Metodo per inserire un ordine limite.
+     * L'ordine viene prima eseguito contro il lato opposto finche' il prezzo dei livelli rispetta il limite,
+     * l'eventuale quantita' residua resta nel book al prezzo limite.
+     * Un prezzo che il lato non puo' contenere (fuori banda o non multiplo del tick) viene rifiutato
+     * prima del matching, senza toccare il book: l'orderId del report resta -1.
      * 
-     * @param tipo Tipo dell'ordine ("ask" per vendita, "bid" per acquisto).
+     * @param owner Username dell'utente che inserisce l'ordine.
+     * @param tipo Tipo dell'ordine (ASK per vendita, BID per acquisto).
      * @param size Dimensione dell'ordine.
      * @param price Prezzo limite dell'ordine.
-     * @return L'ordine inserito.
+     * @param report Report su cui scrivere l'orderId assegnato e i trade eseguiti.
      * @throws IOException Se si verifica un errore durante la scrittura nel file.
      */
-	public Order insertLimitOrder(String tipo, int size, int price) throws IOException {
-
-				Order new_offer = null;
-				List<Integer> interested = null;
-
-				switch (tipo) {
-					/*
-					Se e' ask allora e' un offerta di vendita:
-						- se c'e' la key del prezzo allora controllo
-							- se c'e' un offerta di acquisto a quel prezzo prima di vendere controllo:
-								- se c'e' un offerta piu' bassa con quantita' uguale o maggiore? se si vendo a quell'offerta, senno' piazzo l'offerta di vendita
-					*/
-					case "ask":
-						if (priceSegments.containsKey(price)) {
-			                // Logica per la gestione degli ordini di vendita ("ask")
-			                // Controlla se esistono offerte a quel prezzo
-			                // Esegue la vendita se trova un'offerta compatibile, altrimenti aggiunge un nuovo ordine di vendita
-							LinkedList<Order> offers = priceSegments.get(price);
-							// Se io sono un offerta di vendita e trovo un offerta di acquisto con disponibilita adeguata oppure migliore, vendo
-							if (offers.getFirst().getType() == "bid" && size >= getSizeOffersByPrice(price) || lookingForBestOffer(size, "ask") != price) {
-
-								int betterPrice;
-								if ((betterPrice = lookingForBestOffer(size, "ask")) != price) {
-									// Vendo all'offerta di acquisto migliore
-									interested = sell(betterPrice, size);
-									new_offer = new Order("ask", "limit", size, price);
-									new_offer.setUsersToNotifyByOrderId(interested);
-
-								} else {
-								// Vendo all'offerta di acquisto limite
-									interested = sell(price, size);
-									new_offer = new Order("ask", "limit", size, price);
-									new_offer.setUsersToNotifyByOrderId(interested);
-
-								}
-							// Allora vuoldire che le offerte a quel prezzo sono ask
-								// - pusho sull'array segment la mia offerta
-							} else {
-								new_offer = new Order("ask", "limit", size, price);
-								priceSegments.get(price).add(new_offer);
-							}
-
-
-						// Non c'e' la cella che descrive l'asset a quel prezzo, percio' la piazzo
-			            } else {
-			                // Creo una nuova lista e aggiungo l'offerta
-			            	new_offer = new Order("ask", "limit", size, price);
-			                LinkedList<Order> newOffersList = new LinkedList<>();
-			                newOffersList.add(new_offer);
-			                priceSegments.put(price, newOffersList);
-			            }
-			            break;
-
-					case "bid":
-		                // Logica per la gestione degli ordini di acquisto ("bid")
-		                // Simile al caso "ask", ma per gli acquisti
-					    if (priceSegments.containsKey(price)) {
-					        LinkedList<Order> offers = priceSegments.get(price);
-
-					        // Se trovo un'offerta di vendita valida e compatibile
-					        if (offers.getFirst().getType().equals("ask") && size <= getSizeOffersByPrice(price) || lookingForBestOffer(size, "bid") != price) {
-
-					            int betterPrice;
-					            if ((betterPrice = lookingForBestOffer(size, "bid")) != price) {
-					                // Compro all'offerta di vendita migliore
-					            	interested = purchase(betterPrice, size);
-							    	new_offer = new Order("bid", "limit", size, price);
-									new_offer.setUsersToNotifyByOrderId(interested);
-
-					            } else {
-					            // Compro all'offerta limite di vendita
-					            	interested = purchase(price, size);
-							    	new_offer = new Order("bid", "limit", size, price);
-									new_offer.setUsersToNotifyByOrderId(interested);
-
-					            }
-					        } else {
-					            // Non ci sono offerte di vendita compatibili, piazzo il mio ordine di acquisto
-					        	new_offer = new Order("bid", "limit", size, price);
-					            priceSegments.get(price).add(new_offer);
-					        }
-
-					    } else {
-					        // Non c'è alcuna cella a quel prezzo, aggiungo il mio ordine di acquisto
-					    	new_offer = new Order("bid", "limit", size, price);
-					        LinkedList<Order> newOffersList = new LinkedList<>();
-
-					        newOffersList.add(new_offer);
-					        priceSegments.put(price, newOffersList);
-					    }
-					    break;
-
-					default:
-			            throw new IllegalArgumentException("Tipo ordine non valido: " + tipo);
-				}
-			if (new_offer != null) { updateFileOrders(new_offer); }
-			return new_offer;
-
+	public void insertLimitOrder(String owner, Side tipo, int size, int price, ExecutionReport report) throws IOException {
+		if (!segmentsOf(tipo).accepts(price)) { return; }
+		Order new_offer = pool.acquire().init(owner, tipo, OrderType.LIMIT, size, price);
+		report.setOrderId(new_offer.getOrderId());
+		int remainSize = match(new_offer, price, report);
+		boolean traded = remainSize < size;
+
+		// La parte non eseguita resta nel book come offerta al prezzo limite
+		if (remainSize > 0) {
+			new_offer.setSize(remainSize);
+			restOrder(new_offer);
+			journal.appendRest(new_offer);
 		}
 
+		updateFileOrders(new_offer);
+		if (remainSize == 0) { pool.release(new_offer); }
+		if (traded) { triggerStopOrders(report); }
+	}
+
     /**
      * Metodo per inserire un ordine di mercato.
+     * L'ordine viene eseguito contro il lato opposto a qualunque prezzo; la quantita' che non trova
+     * controparte viene scartata, perche' un ordine di mercato non resta mai nel book.
+     * Se non c'e' alcuna controparte l'orderId del report resta -1, altrimenti il report riporta la quantita' scartata.
      * 
-     * @param tipo Tipo dell'ordine ("ask" o "bid").
+     * @param owner Username dell'utente che inserisce l'ordine.
+     * @param tipo Tipo dell'ordine (ASK o BID).
      * @param size Dimensione dell'ordine.
-     * @return L'ordine di mercato inserito.
+     * @param report Report su cui scrivere l'orderId assegnato e i trade eseguiti.
      * @throws IOException Se si verifica un errore durante la scrittura nel file.
      */
-	public Order insertMarketOrder(String tipo, int size) throws IOException {
-	    int price;
-	    Order marketOrder = null;
-	    List<Integer> interested = null;
-
-	    switch (tipo) {
-	        case "ask":
-                // Logica per trovare il miglior prezzo di acquisto e vendere
-	            price = lookingForBestOffer(size, "ask");
-	            if (price > 0) {
-	                interested = sell(price, size); // Esegui la vendita al miglior prezzo
-	                marketOrder = new Order(tipo, "market", size, price);
-	                marketOrder.setUsersToNotifyByOrderId(interested);
-	            }
-	            break;
-
-	        case "bid":
-                // Logica per trovare il miglior prezzo di vendita e acquistare
-	            price = lookingForBestOffer(size, "bid");
-	            System.out.println("looking for best offer:" + price);
-	            if (price > 0) {
-	                interested = purchase(price, size); // Esegui l'acquisto al miglior prezzo
-	                marketOrder = new Order(tipo, "market", size, price);
-	                marketOrder.setUsersToNotifyByOrderId(interested);
-	            }
-	            break;
+	public void insertMarketOrder(String owner, Side tipo, int size, ExecutionReport report) throws IOException {
+		Order marketOrder = pool.acquire().init(owner, tipo, OrderType.MARKET, size, 0);
+		int remainSize = match(marketOrder, 0, report);
+
+		if (remainSize == size) {
+			pool.release(marketOrder);
+			return;
+		}
+		report.setUnfilledSize(remainSize);
+
+		// L'ordine di mercato registra la quantita' eseguita e l'ultimo prezzo raggiunto
+		report.setOrderId(marketOrder.getOrderId());
+		marketOrder.setSize(size - remainSize);
+		marketOrder.setPrice(lastPrice);
+
+		updateFileOrders(marketOrder);
+		pool.release(marketOrder);
+		triggerStopOrders(report);
+	}
+
+	/*
+	Sweep del lato opposto partendo dal top of book, in un unico passaggio:
+		- per ogni livello che rispetta il prezzo limite consumo gli ordini in ordine FIFO
+		- ogni ordine consumato, anche parzialmente, genera un Trade verso la sua controparte
+		- mi fermo quando la size e' esaurita, il lato e' vuoto o il livello supera il limite (0 = nessun limite)
+	Ogni trade viene accodato al journal e aggiorna i dati giornalieri della cronologia dei prezzi. I livelli svuotati vengono rimossi aggiornando il best price
+	e gli ordini completamente eseguiti tornano nel pool.
+	Restituisce la quantita' non eseguita.
+	*/
+	private int match(Order taker, int limitPrice, ExecutionReport report) throws IOException {
+	    Side restingSide = taker.getType().opposite();
+	    PriceLadder segments = segmentsOf(restingSide);
+	    int remainSize = taker.getSize();
+	    int price = restingSide == Side.BID ? bestBid : bestAsk;
+
+	    while (remainSize > 0 && price != 0 && crosses(taker.getType(), price, limitPrice)) {
+	    	PriceLevel offers = segments.level(price);
+
+	    	while (remainSize > 0 && !offers.isEmpty()) {
+	    		Order maker = offers.peek();
+	    		int quantity = Math.min(maker.getSize(), remainSize);
+	    		Trade trade = report.addTrade(maker, taker, price, quantity);
+	    		journal.appendTrade(trade);
+	    		priceHistory.onTrade(price, quantity, trade.getTimestamp());
+	    		if (marketData != null) { marketData.onTrade(encodedSymbol, trade.getTimestamp(), price, quantity, taker.getType()); }
+
+	    		if (quantity == maker.getSize()) {
+	    			offers.remove(maker);
+	    			trackClosed(maker);
+	    			pool.release(maker);
+	    		} else {
+	    			offers.reduce(maker, quantity);
+	    		}
+	    		remainSize -= quantity;
+	    	}
+	    	lastPrice = price;
+	    	markDirty(restingSide, price);
+
+	    	int nextPrice = segments.nextPrice(price);
+	    	if (offers.isEmpty()) { removeLevel(restingSide, price); }
+	    	price = nextPrice;
 	    }
-		if (marketOrder != null) { updateFileOrders(marketOrder); }
-	    return marketOrder;
+
+	    return remainSize;
+	}
+
+	// Un venditore accetta prezzi almeno pari al limite, un compratore prezzi al massimo pari al limite
+	private static boolean crosses(Side takerSide, int price, int limitPrice) {
+	    if (limitPrice == 0) { return true; }
+	    return takerSide == Side.ASK ? price >= limitPrice : price <= limitPrice;
 	}
 	
     /**
      * Metodo per cancellare un ordine specifico.
+     * L'ordine viene trovato tramite l'indice restingOrders e scollegato direttamente dal proprio livello,
+     * senza scorrere il book.
      * 
      * @param orderId ID dell'ordine da cancellare.
+     * @param owner Username dell'utente che richiede la cancellazione.
+     * @return true se l'ordine era attivo e apparteneva all'utente, false altrimenti.
+     * @throws IOException Se la scrittura nel journal fallisce.
      */
-	public void cancelOrder(int orderId) {
-	    lock.lock();
-	    try {
-	        boolean orderFound = false;
-            
-	        // Logica per cercare e rimuovere l'ordine specificato
-	        // Itera su tutte le entry della mappa
-	        for (Map.Entry<Integer, LinkedList<Order>> entry : priceSegments.entrySet()) {
-	            LinkedList<Order> orders = entry.getValue();
-
-	            // Usa un iterator per evitare ConcurrentModificationException
-	            Iterator<Order> iterator = orders.iterator();
-	            while (iterator.hasNext()) {
-	                Order order = iterator.next();
-	                if (order.getOrderId() == orderId) { // Confronto diretto per gli ID
-	                    iterator.remove();
-	                    orderFound = true;
-	                    System.out.println("Order " + orderId + " canceled successfully.");
-	                    break; // Esci dal ciclo se l'ordine è stato trovato
-	                }
-	            }
-
-	            if (orderFound) {
-	                break; // Esci dal ciclo esterno se l'ordine è stato trovato
-	            }
-	        }
+	public boolean cancelOrder(int orderId, String owner) throws IOException {
+	    Order order = restingOrders.get(orderId);
 
-	        if (!orderFound) {
-	            System.err.println("Order " + orderId + " not found.");
+	    if (order == null || !order.getOwner().equals(owner)) {
+	        return false;
+	    }
+
+	    trackClosed(order);
+	    PriceLevel orders = order.getLevel();
+	    orders.remove(order);
+	    if (orders.isEmpty()) {
+	        if (order.getOrderType() == OrderType.STOP) {
+	            stopsOf(order.getType()).removeLevel(order.getPrice());
+	        } else {
+	            removeLevel(order.getType(), order.getPrice());
 	        }
-	    } finally {
-	        lock.unlock();
 	    }
+	    if (order.getOrderType() != OrderType.STOP) { markDirty(order.getType(), order.getPrice()); }
+	    pool.release(order);
+	    journal.appendCancel(orderId);
+	    return true;
+	}
+
+    /**
+     * Restituisce un ordine ancora attivo nel book.
+     * L'istanza appartiene al pool del book: va usata solo dal thread del MatchingEngine e non va conservata.
+     *
+     * @param orderId ID dell'ordine.
+     * @return L'ordine, oppure null se e' stato eseguito, cancellato o non esiste.
+     */
+	public Order getRestingOrder(int orderId) {
+	    return restingOrders.get(orderId);
 	}
 	
     /**
-     * Classe interna per gestire i dati di prezzo giornalieri.
+     * Metodo per inserire uno stop order.
+     * L'ordine resta in attesa finche' un trade non porta l'ultimo prezzo allo stopPrice
+     * (al rialzo per un acquisto, al ribasso per una vendita), poi viene eseguito come ordine di mercato.
+     * Un prezzo di attivazione fuori banda o non multiplo del tick viene rifiutato: l'orderId del report resta -1.
+     *
+     * @param owner Username dell'utente che inserisce l'ordine.
+     * @param type Tipo dell'ordine (ASK o BID).
+     * @param size Dimensione dell'ordine.
+     * @param stopPrice Prezzo di attivazione.
+     * @param report Report su cui scrivere l'orderId assegnato.
+     * @throws IOException Se la scrittura nel journal fallisce.
      */
-	public Order insertStopOrder(String type, int size, int stopPrice) throws IOException {
-	    lock.lock();
-	    try {
-	        Order stopOrder = new Order(type, "stop", size, stopPrice);
-	        stopOrders.add(stopOrder);
-			//updateFileOrders(stopOrder);
-	        return stopOrder;
-	    } finally {
-	        lock.unlock();
-	    }
+	public void insertStopOrder(String owner, Side type, int size, int stopPrice, ExecutionReport report) throws IOException {
+	    if (!stopsOf(type).accepts(stopPrice)) { return; }
+	    Order stopOrder = pool.acquire().init(owner, type, OrderType.STOP, size, stopPrice);
+	    restStop(stopOrder);
+	    journal.appendRest(stopOrder);
+	    report.setOrderId(stopOrder.getOrderId());
 	}
 
-
-	// Metodo per controllare ed eseguire gli Stop Orders
-	public synchronized void checkStopOrders() throws IOException {
-
-		if (!stopOrders.isEmpty()) {
-	        // Itera sulla lista
-	        for (Order order : stopOrders) {
-
-	        	switch (order.getType()) {
-	        		case "ask":
-	        			// Se le proposte di acquisto attuali sono minori del mio stopPrice, vendo
-	        			if (lookingForBestOffer(order.getSize(), "ask") <= order.getPrice()) {insertMarketOrder("ask", order.getSize());}
-	        			break;
-	        		case "bid":
-	        			// Se le proposte di vendita salgono troppo, compro
-	        			if (lookingForBestOffer(order.getSize(), "bid") >= order.getPrice()) {insertMarketOrder("bid", order.getSize());}
-	        			break;
-
-	       }}}}
-
-	// Metodo che compra al prezzo specificato, di size specificata, in ordine FIFO degli ordini
-	public static List<Integer> sell(int price, int size) {
-
-	    LinkedList<Order> offers = priceSegments.get(price);
-	    int remainSize = size;
-	    List<Integer> usersToNotifyByOrderId = new ArrayList<>();
-
-		/*
-		Vendo al prezzo finche' non esaurisco la size:
-			- se size e' compresa nella size dell'offerta di acquisto
-				- se e' uguale elimino l'offerta di acquisto
-				- se e' minore aggiorno la size dell'offerta di acquisto
-		*/
-		do {
-			Order firstOffer = offers.getFirst();
-
-			// Caso in cui l'offerta di acquisto e' minore:
-				// - aggiorno il remain size
-				// - elimino l'offerta di acquisto
-			if (firstOffer.getSize() - remainSize < 0) {
-				remainSize -= firstOffer.getSize();
-				offers.removeFirst();
-			} else if (firstOffer.getSize() - remainSize == 0) {
-				offers.removeFirst();
-				break;
-			} else {
-				firstOffer.setSize(firstOffer.getSize() - remainSize);
-				break;
-			}
-
-			usersToNotifyByOrderId.add(offers.getFirst().getOrderId());
-
-		} while (remainSize != 0);
-
-		return usersToNotifyByOrderId;
+	// Registra un ordine attivo nell'indice del book e, se collegato, tra gli ordini attivi del proprietario
+	private void trackOpen(Order order) {
+	    restingOrders.put(order.getOrderId(), order);
+	    if (openOrders != null) { openOrders.onOpen(order.getOwner(), order.getOrderId()); }
 	}
 
-	public static List<Integer> purchase(int price, int size) {
-	    LinkedList<Order> offers = priceSegments.get(price);
-	    System.out.println(offers.toString());
-	    int remainSize = size;
-
-	    List<Integer> usersToNotifyByOrderId = new ArrayList<>();
-
-	    /*
-	    Acquisto al prezzo specificato finché non esaurisco la quantità richiesta:
-	    - Se la size dell'offerta è maggiore o uguale alla quantità richiesta, aggiorno o rimuovo l'offerta.
-	    - Altrimenti, riduco la quantità richiesta e continuo con l'offerta successiva.
-	    */
-	    do {
-	    	if (offers == null || offers.isEmpty()) {
-	    		System.out.println("Nessuna offerta trovata per il prezzo: " + price);
-	    		break;
-	    	} else {
-	    		
-	    		Order firstOffer = offers.getFirst();
-	    		
-	    		if (firstOffer.getSize() <= remainSize) {
-	    			remainSize -= firstOffer.getSize();
-	    			offers.removeFirst();
-	    		} else {
-	    			firstOffer.setSize(firstOffer.getSize() - remainSize);
-	    			remainSize = 0;
-	    		}
-	    		
-	    		// Rimuovo il segmento
-	    		if (offers.isEmpty()) {
-	    			priceSegments.remove(price);
-	    		}
-	    		
-	    		//usersToNotifyByOrderId.add(offers.getFirst().getOrderId());
-	    		usersToNotifyByOrderId.add(firstOffer.getOrderId());
-
-	    	}
+	// Toglie un ordine eseguito, cancellato o attivato dall'indice del book e dagli ordini attivi del proprietario
+	private void trackClosed(Order order) {
+	    restingOrders.remove(order.getOrderId());
+	    if (openOrders != null) { openOrders.onClose(order.getOwner(), order.getOrderId()); }
+	}
 
-	    } while (remainSize > 0 && !offers.isEmpty());
+	// Mette uno stop order in attesa sul ladder del proprio lato
+	private void restStop(Order stopOrder) {
+	    stopsOf(stopOrder.getType()).levelForInsert(stopOrder.getPrice()).add(stopOrder);
+	    trackOpen(stopOrder);
+	}
 
-	    // Notifica se l'ordine non è stato completamente soddisfatto
-	    if (remainSize > 0) {
-	        System.out.println("Ordine parzialmente soddisfatto. Quantità residua: " + remainSize);
+	/*
+	Attiva gli stop order raggiunti dall'ultimo prezzo:
+		- buy stop con stopPrice <= lastPrice, sell stop con stopPrice >= lastPrice
+		- sono in testa ai rispettivi ladder, quindi si estraggono in O(log n + k) senza toccare quelli non attivati
+		- ogni stop estratto esce dall'indice e viene eseguito come ordine di mercato; i suoi trade aggiornano
+		  lastPrice e possono attivare altri stop, gestiti dallo stesso ciclo
+	I trade degli stop eseguiti finiscono nel report del comando che ha dato origine alla cascata.
+	*/
+	private void triggerStopOrders(ExecutionReport report) throws IOException {
+	    Order stop;
+	    while ((stop = pollTriggeredStop()) != null) {
+	        int remainSize = match(stop, 0, report);
+	        stop.setSize(stop.getSize() - remainSize);
+	        updateFileOrders(stop);
+	        pool.release(stop);
 	    }
-
-	    return usersToNotifyByOrderId;
 	}
 
+	// Estrae il primo stop order attivato dall'ultimo prezzo, oppure null se nessuno e' attivato
+	private Order pollTriggeredStop() {
+	    if (lastPrice == 0) { return null; }
 
-	// Restituisce la size totale di tutte le offerte, non specifica se ask o bid
-	public static int getSizeOffersByPrice(int price) {
-	    LinkedList<Order> offers = priceSegments.get(price);
-	    int totalSize = 0;
-	    for (Order offer : offers) {
-	        totalSize += offer.getSize();
-	    }
-	    return totalSize;
-	}
+	    int price = buyStops.bestPrice();
+	    if (price != 0 && price <= lastPrice) { return pollStop(buyStops, price); }
 
-	public static int lookingForBestOffer(int size, String type) {
-	    int currentPrice = 0;
-
-	    // Se io sono un'offerta di vendita voglio venderlo al prezzo più alto
-	    if (type.equals("ask")) {
-	        // Ottieni l'insieme delle chiavi in ordine decrescente, perché devo trovare le offerte di acquisto più alte in prezzo
-	        for (Map.Entry<Integer, LinkedList<Order>> entry : priceSegments.entrySet()) {
-	            currentPrice = entry.getKey();
-	            LinkedList<Order> orders = entry.getValue();
-
-	            // Salta se la lista è vuota
-	            if (orders.isEmpty()) {
-	                continue;
-	            }
-
-	            // Se il tipo dell'offerta non è bid non mi interessa
-	            if (!orders.getFirst().getType().equals("bid")) {
-	                continue;
-	            }
-
-	            // Controlla se il prezzo corrente è minore di "price" e ha disponibilità sufficiente
-	            if (getSizeOffersByPrice(currentPrice) >= size) {
-	                break; // Uscita dal ciclo appena trovato un miglior prezzo
-	            }
-	        }
-	    }
+	    price = sellStops.bestPrice();
+	    if (price != 0 && price >= lastPrice) { return pollStop(sellStops, price); }
 
-	    // Se io sono un'offerta di acquisto, voglio comprare al prezzo più basso
-	    if (type.equals("bid")) {
-	        for (Map.Entry<Integer, LinkedList<Order>> entry : priceSegments.descendingMap().entrySet()) {
-	            currentPrice = entry.getKey();
-	            LinkedList<Order> orders = entry.getValue();
-
-	            // Salta se la lista è vuota
-	            if (orders.isEmpty()) {
-	                continue;
-	            }
-
-	            // Se il tipo dell'offerta non è ask non mi interessa
-	            if (!orders.getFirst().getType().equals("ask")) {
-	                continue;
-	            }
-
-	            // Se c'è un prezzo di vendita minore del mio limite di vendita, ritorno il prezzo
-	            if (getSizeOffersByPrice(currentPrice) >= size) {
-	                break;
-	            }
-	        }
-	    }
+	    return null;
+	}
 
-	    return currentPrice;
+	private Order pollStop(PriceLadder stops, int price) {
+	    PriceLevel level = stops.level(price);
+	    Order stop = level.peek();
+	    level.remove(stop);
+	    if (level.isEmpty()) { stops.removeLevel(price); }
+	    trackClosed(stop);
+	    return stop;
 	}
-	
+
+	// Restituisce la size totale delle offerte di un livello di prezzo del lato indicato, letta dal totale mantenuto dal livello
+	public long getSizeOffersByPrice(Side side, int price) {
+	    PriceLevel offers = segmentsOf(side).level(price);
+	    return offers == null ? 0 : offers.getTotalSize();
+	}
+
     public static File createFileOrder(String path, String name) {
         
     	File file = new File("/home/re/progetto/src", "output.json");
@@ -531,19 +722,71 @@ public class OrderBook {
         private int closingPrice;
         private int maxPrice;
         private int minPrice;
+        private long volume;
 
         public DayPriceData() {
             this.maxPrice = Integer.MIN_VALUE;
             this.minPrice = Integer.MAX_VALUE;
         }
 
-        public void update(int price) {
+        // Aggiornato dal MatchingEngine ad ogni trade, mentre i client ne leggono una copia
+        public synchronized void update(int price, int size) {
             if (maxPrice == Integer.MIN_VALUE) { // Imposta il prezzo di apertura al primo prezzo ricevuto
                 openingPrice = price;
             }
             closingPrice = price; // Aggiorna il prezzo di chiusura con l'ultimo prezzo ricevuto
             maxPrice = Math.max(maxPrice, price);
             minPrice = Math.min(minPrice, price);
+            volume += size;
+        }
+
+        // Aggiunge un gruppo di trade successivi a quelli gia' contati, riassunto dalle sue statistiche
+        public synchronized void merge(int open, int close, int max, int min, long size) {
+            if (maxPrice == Integer.MIN_VALUE) {
+                openingPrice = open;
+            }
+            closingPrice = close;
+            maxPrice = Math.max(maxPrice, max);
+            minPrice = Math.min(minPrice, min);
+            volume += size;
+        }
+
+        // Aggiunge i dati di un periodo successivo: l'unione e' associativa, per cui i periodi possono essere calcolati in parallelo
+        public void merge(DayPriceData later) {
+            DayPriceData data = later.copy();
+            if (!data.isEmpty()) {
+                merge(data.openingPrice, data.closingPrice, data.maxPrice, data.minPrice, data.volume);
+            }
+        }
+
+        public synchronized boolean isEmpty() { return maxPrice == Integer.MIN_VALUE; }
+
+        public synchronized DayPriceData copy() {
+            DayPriceData copy = new DayPriceData();
+            copy.openingPrice = openingPrice;
+            copy.closingPrice = closingPrice;
+            copy.maxPrice = maxPrice;
+            copy.minPrice = minPrice;
+            copy.volume = volume;
+            return copy;
+        }
+
+        public synchronized void write(DataOutputStream out) throws IOException {
+            out.writeInt(openingPrice);
+            out.writeInt(closingPrice);
+            out.writeInt(maxPrice);
+            out.writeInt(minPrice);
+            out.writeLong(volume);
+        }
+
+        public static DayPriceData read(DataInputStream in) throws IOException {
+            DayPriceData data = new DayPriceData();
+            data.openingPrice = in.readInt();
+            data.closingPrice = in.readInt();
+            data.maxPrice = in.readInt();
+            data.minPrice = in.readInt();
+            data.volume = in.readLong();
+            return data;
         }
 
         @Override
@@ -553,68 +796,234 @@ public class OrderBook {
                     + ", \"closingPrice\": " + closingPrice
                     + ", \"maxPrice\": " + maxPrice
                     + ", \"minPrice\": " + minPrice
+                    + ", \"volume\": " + volume
                     + "}";
         }
     }
+    /**
+     * Lato di un ordine, con codice compatto e nome usato nei messaggi JSON.
+     */
+    public enum Side {
+        @SerializedName("ask") ASK((byte) 0, "ask"),
+        @SerializedName("bid") BID((byte) 1, "bid");
+
+        private final byte code;
+        private final String label;
+
+        Side(byte code, String label) {
+            this.code = code;
+            this.label = label;
+        }
+
+        public byte getCode() { return code; }
+        public String getLabel() { return label; }
+        public Side opposite() { return this == ASK ? BID : ASK; }
+
+        public static Side fromCode(byte code) { return code == 0 ? ASK : BID; }
+
+        /**
+         * @param type Tipo ricevuto dal client ("ask" o "bid").
+         * @return Il lato corrispondente.
+         */
+        public static Side parse(String type) {
+            switch (type) {
+                case "ask": return ASK;
+                case "bid": return BID;
+                default: throw new IllegalArgumentException("Tipo ordine non valido: " + type);
+            }
+        }
+    }
+
+    /**
+     * Tipo di un ordine, con codice compatto e nome usato nei messaggi JSON.
+     */
+    public enum OrderType {
+        @SerializedName("limit") LIMIT((byte) 0, "limit"),
+        @SerializedName("market") MARKET((byte) 1, "market"),
+        @SerializedName("stop") STOP((byte) 2, "stop");
+
+        private final byte code;
+        private final String label;
+
+        OrderType(byte code, String label) {
+            this.code = code;
+            this.label = label;
+        }
+
+        public byte getCode() { return code; }
+        public String getLabel() { return label; }
+
+        private static final OrderType[] BY_CODE = values();
+
+        public static OrderType fromCode(byte code) { return BY_CODE[code]; }
+    }
+
+    /**
+     * Classe per rappresentare l'esecuzione tra un ordine entrante (taker) e un ordine nel book (maker).
+     * Le istanze vivono negli ExecutionReport e vengono riscritte ad ogni comando.
+     */
+    public static class Trade {
+        private int makerOrderId;
+        private String makerOwner;
+        private Side makerType;
+        private int takerOrderId;
+        private String takerOwner;
+        private Side takerType;
+        private OrderType takerOrderType;
+        private int price;
+        private int size;
+        private int timestamp;
+
+        public Trade() {}
+
+        public void set(Order maker, Order taker, int price, int size) {
+            this.makerOrderId = maker.getOrderId();
+            this.makerOwner = maker.getOwner();
+            this.makerType = maker.getType();
+            this.takerOrderId = taker.getOrderId();
+            this.takerOwner = taker.getOwner();
+            this.takerType = taker.getType();
+            this.takerOrderType = taker.getOrderType();
+            this.price = price;
+            this.size = size;
+            this.timestamp = (int) (System.currentTimeMillis() / 1000);
+        }
+
+        public void copyFrom(Trade other) {
+            this.makerOrderId = other.makerOrderId;
+            this.makerOwner = other.makerOwner;
+            this.makerType = other.makerType;
+            this.takerOrderId = other.takerOrderId;
+            this.takerOwner = other.takerOwner;
+            this.takerType = other.takerType;
+            this.takerOrderType = other.takerOrderType;
+            this.price = other.price;
+            this.size = other.size;
+            this.timestamp = other.timestamp;
+        }
+
+        // Getters
+        public int getMakerOrderId() { return this.makerOrderId; }
+        public String getMakerOwner() { return this.makerOwner; }
+        public int getTakerOrderId() { return this.takerOrderId; }
+        public String getTakerOwner() { return this.takerOwner; }
+        public Side getTakerType() { return this.takerType; }
+        public OrderType getTakerOrderType() { return this.takerOrderType; }
+        public int getPrice() { return this.price; }
+        public int getSize() { return this.size; }
+        public int getTimestamp() { return this.timestamp; }
+
+        @Override
+        public String toString() {
+            return "Trade{maker=" + makerOrderId + ", taker=" + takerOrderId + ", size=" + size + ", price=" + price + "}";
+        }
+
+        // Dimensione massima di una notifica codificata con encode
+        public static final int NOTIFY_BYTES = 256;
+
+        /**
+         * Codifica la notifica in JSON compatto direttamente nel buffer, senza allocare oggetti:
+         * {"orderId":..,"type":..,"orderType":..,"size":..,"price":..,"timestamp":..}
+         * Piu' notifiche vengono raccolte nell'array "trades" di un datagramma o di una riga della casella.
+         * Non riusa il record TRADE del journal: quello e' binario, contiene entrambi gli ordini ed e' scritto una volta
+         * dal thread di matching, mentre la notifica e' testuale, riguarda un solo lato ed e' codificata dal
+         * NotificationDispatcher per ogni destinatario.
+         *
+         * @param buffer Buffer di almeno NOTIFY_BYTES byte liberi, scritto dalla posizione corrente.
+         * @param forMaker true per la notifica al proprietario dell'ordine nel book, false per quella al taker.
+         */
+        public void encode(ByteBuffer buffer, boolean forMaker) {
+            buffer.put((byte) '{');
+            CompactJson.putField(buffer, "orderId", forMaker ? this.makerOrderId : this.takerOrderId, true);
+            CompactJson.putField(buffer, "type", (forMaker ? this.makerType : this.takerType).getLabel(), false);
+            CompactJson.putField(buffer, "orderType", forMaker ? OrderType.LIMIT.getLabel() : this.takerOrderType.getLabel(), false);
+            CompactJson.putField(buffer, "size", this.size, false);
+            CompactJson.putField(buffer, "price", this.price, false);
+            CompactJson.putField(buffer, "timestamp", this.timestamp, false);
+            buffer.put((byte) '}');
+        }
+    }
+
     /**
      * Classe per rappresentare un ordine.
+     * Le istanze sono riciclate tramite OrderPool: init le prepara per un nuovo ordine, reset le svuota al rilascio.
      */
     public static class Order {
-        private static int globalOrderId = 0; // Contatore globale
-        private final int orderId; // ID univoco per ogni ordine
-        private final String type;
-        private final String orderType;
-        private Integer size;
-        private final Integer price;
-        private final Integer timestamp;
-        private List<Integer> usersToNotifyByOrderId = null;
-
-        public Order(String type, String orderType, Integer size, Integer price) {
-            this.orderId = ++globalOrderId; // Incrementa il contatore globale e assegna un ID
+        private static final AtomicInteger globalOrderId = new AtomicInteger(0); // Contatore globale, condiviso dai thread di matching
+        private int orderId; // ID univoco per ogni ordine
+        private String owner; // Username dell'utente che ha inserito l'ordine
+        private Side type;
+        private OrderType orderType;
+        private int size;
+        private int price;
+        private int timestamp;
+        // Collegamenti nella coda del livello di prezzo su cui riposa l'ordine, non persistiti
+        private transient PriceLevel level = null;
+        private transient Order prev = null;
+        private transient Order next = null;
+
+        // Le istanze si ottengono da OrderPool
+        Order() {}
+
+        public Order init(String owner, Side type, OrderType orderType, int size, int price) {
+            this.orderId = globalOrderId.incrementAndGet(); // Incrementa il contatore globale e assegna un ID
+            this.owner = owner;
+            this.type = type;
+            this.orderType = orderType;
+            this.size = size;
+            this.price = price;
+            this.timestamp = (int) (System.currentTimeMillis() / 1000);
+            return this;
+        }
+
+        // Ricrea un ordine letto da snapshot o journal, mantenendo il suo ID
+        public Order restore(int orderId, String owner, Side type, OrderType orderType, int size, int price, int timestamp) {
+            this.orderId = orderId;
+            this.owner = owner;
             this.type = type;
             this.orderType = orderType;
             this.size = size;
             this.price = price;
-            this.timestamp = (int) Instant.now().getEpochSecond();
+            this.timestamp = timestamp;
+            return this;
+        }
+
+        // Dopo un ripristino i nuovi ID proseguono da quelli gia' assegnati, anche da altri strumenti
+        static void advanceOrderId(int maxOrderId) {
+            globalOrderId.accumulateAndGet(maxOrderId, Math::max);
+        }
+
+        // Rilascia i riferimenti prima di tornare nel pool
+        void reset() {
+            this.owner = null;
+            this.level = null;
+            this.prev = null;
+            this.next = null;
         }
 
         // Getters
         public int getOrderId() { return this.orderId; }
-        public String getType() { return this.type; }
-        public Integer getTimestamp() { return this.timestamp; }
-        public Integer getSize() { return this.size; }
-        public Integer getPrice() { return this.price; }
-        public List<Integer> getUsersToNotifyByOrderId() { return this.usersToNotifyByOrderId; }
+        public String getOwner() { return this.owner; }
+        public Side getType() { return this.type; }
+        public OrderType getOrderType() { return this.orderType; }
+        public int getTimestamp() { return this.timestamp; }
+        public int getSize() { return this.size; }
+        public int getPrice() { return this.price; }
+        public PriceLevel getLevel() { return this.level; }
+        public Order getPrev() { return this.prev; }
+        public Order getNext() { return this.next; }
 
         // Setters
         public void setSize(int newSize) { this.size = newSize; }
-        public void setUsersToNotifyByOrderId(List<Integer> lista) { this.usersToNotifyByOrderId = lista; }
+        public void setPrice(int newPrice) { this.price = newPrice; }
+        public void setLevel(PriceLevel level) { this.level = level; }
+        public void setPrev(Order prev) { this.prev = prev; }
+        public void setNext(Order next) { this.next = next; }
 
         @Override
         public String toString() {
             return "Order{id=" + orderId + ", size=" + size + ", price=" + price + "}";
         }
-
-        public String toJson() {
-            Gson gson = new GsonBuilder().setPrettyPrinting().create();
-
-            // Creazione del JSON per l'ordine
-            JsonObject orderJson = new JsonObject();
-            orderJson.addProperty("orderId", this.orderId);
-            orderJson.addProperty("type", this.type);
-            orderJson.addProperty("orderType", this.orderType);
-            orderJson.addProperty("size", this.size);
-            orderJson.addProperty("price", this.price);
-            orderJson.addProperty("timestamp", this.timestamp);
-
-            JsonArray tradesArray = new JsonArray();
-            tradesArray.add(orderJson);
-
-            JsonObject finalJson = new JsonObject();
-            finalJson.add("trades", tradesArray);
-
-            return gson.toJson(finalJson);
-        }
     }
 
 
@@ -0,0 +1,72 @@
+/**
+ * Insieme di orderId con chiavi int primitive, usato per gli ordini attivi di un utente.
+ * Stessa tabella ad indirizzamento aperto di OrderIndex: add, remove e contains non allocano,
+ * salvo il raddoppio della tabella quando si riempie per meta'.
+ * I thread di matching degli strumenti lo aggiornano e il thread del client lo legge, per cui l'accesso e' sincronizzato.
+ */
+public class OrderIdSet {
+
+    private int[] keys = new int[8];
+    private int mask = keys.length - 1;
+    private int size = 0;
+
+    public synchronized int size() { return size; }
+
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public synchronized boolean contains(int orderId) {
+        for (int i = slotOf(orderId); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == orderId) { return true; }
+        }
+        return false;
+    }
+
+    public synchronized void add(int orderId) {
+        if ((size + 1) * 2 > keys.length) { resize(); }
+
+        int i = slotOf(orderId);
+        while (keys[i] != 0 && keys[i] != orderId) { i = (i + 1) & mask; }
+        if (keys[i] == 0) {
+            keys[i] = orderId;
+            size++;
+        }
+    }
+
+    /**
+     * Rimuove un orderId, spostando indietro gli elementi successivi della stessa sequenza come OrderIndex.
+     *
+     * @return true se l'orderId era presente.
+     */
+    public synchronized boolean remove(int orderId) {
+        int i = slotOf(orderId);
+        while (keys[i] != orderId) {
+            if (keys[i] == 0) { return false; }
+            i = (i + 1) & mask;
+        }
+        size--;
+
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = slotOf(keys[j]);
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                hole = j;
+            }
+        }
+        keys[hole] = 0;
+        return true;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        keys = new int[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int key : oldKeys) {
+            if (key != 0) { add(key); }
+        }
+    }
+}
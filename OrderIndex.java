@@ -0,0 +1,91 @@
+/**
+ * Indice orderId -> ordine attivo con chiavi int primitive.
+ * Tabella ad indirizzamento aperto con scansione lineare: put, get e remove non allocano
+ * (ne' nodi ne' Integer), salvo il raddoppio della tabella quando si riempie per meta'.
+ * Gli orderId validi sono positivi, per cui la chiave 0 indica uno slot vuoto.
+ */
+public class OrderIndex {
+
+    private int[] keys;
+    private OrderBook.Order[] values;
+    private int mask;
+    private int size = 0;
+
+    /**
+     * @param expectedSize Numero di ordini attivi previsto, la tabella viene dimensionata di conseguenza.
+     */
+    public OrderIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(8, expectedSize * 2 - 1)) << 1;
+        this.keys = new int[capacity];
+        this.values = new OrderBook.Order[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public int size() { return size; }
+
+    // Dispersione dei bit dell'orderId, gli id sono consecutivi e finirebbero in slot adiacenti
+    private int slotOf(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    public OrderBook.Order get(int orderId) {
+        for (int i = slotOf(orderId); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == orderId) { return values[i]; }
+        }
+        return null;
+    }
+
+    public void put(int orderId, OrderBook.Order order) {
+        if ((size + 1) * 2 > keys.length) { resize(); }
+
+        int i = slotOf(orderId);
+        while (keys[i] != 0 && keys[i] != orderId) { i = (i + 1) & mask; }
+        if (keys[i] == 0) { size++; }
+        keys[i] = orderId;
+        values[i] = order;
+    }
+
+    /**
+     * Rimuove un ordine dall'indice.
+     * Gli elementi successivi della stessa sequenza vengono spostati indietro, cosi' non servono marcatori di cancellazione.
+     *
+     * @param orderId ID dell'ordine.
+     * @return L'ordine rimosso, oppure null se non presente.
+     */
+    public OrderBook.Order remove(int orderId) {
+        int i = slotOf(orderId);
+        while (keys[i] != orderId) {
+            if (keys[i] == 0) { return null; }
+            i = (i + 1) & mask;
+        }
+        OrderBook.Order removed = values[i];
+        size--;
+
+        int hole = i;
+        for (int j = (i + 1) & mask; keys[j] != 0; j = (j + 1) & mask) {
+            int home = slotOf(keys[j]);
+            // L'elemento in j puo' occupare il buco solo se il buco sta tra la sua posizione ideale e j
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                keys[hole] = keys[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+        keys[hole] = 0;
+        values[hole] = null;
+        return removed;
+    }
+
+    private void resize() {
+        int[] oldKeys = keys;
+        OrderBook.Order[] oldValues = values;
+        keys = new int[oldKeys.length * 2];
+        values = new OrderBook.Order[oldKeys.length * 2];
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != 0) { put(oldKeys[i], oldValues[i]); }
+        }
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+################################################################################
+
+Il journal e' un file binario append-only con gli eventi di un order book, uno per strumento.
+Ogni record e' preceduto dalla propria lunghezza:
+	- int length: numero di byte del record che segue
+	- byte kind: ORDER, TRADE, REST o CANCEL
+	- ORDER: orderId, side, orderType, size, price, timestamp, owner (short lunghezza + byte UTF-8)
+	- TRADE: makerOrderId, takerOrderId, lato del taker, price, size, timestamp, tipo dell'ordine taker
+	- REST: stessi campi di ORDER, per un ordine che entra nel book o uno stop che entra in attesa
+	- CANCEL: orderId dell'ordine cancellato
+I record REST, CANCEL e TRADE (che riduce la size del maker) descrivono ogni modifica del book,
+per cui il book puo' essere ricostruito rileggendo il journal da un qualunque snapshot.
+
+La scrittura avviene sempre in coda tramite un FileChannel aperto in append, per cui il costo di un evento
+non dipende dalla dimensione della cronologia.
+
+Il thread del MatchingEngine non tocca il disco: codifica i record in un buffer e prosegue.
+Un thread di scrittura dedicato (group commit) scambia il buffer pieno con uno vuoto e lo scrive con
+un'unica write, seguita da force() secondo la modalita' di durabilita' configurata (journal.durability):
+	- none: nessuna force(), i client ricevono la risposta senza attendere il journal
+	- batch: una force() per ogni blocco di record scritto, i client attendono la force() del proprio blocco
+	- event: una force() per ogni record, i client attendono la force() del proprio record
+Ogni record ha un numero di sequenza: il client attende che durableSequence raggiunga quello del proprio comando
+prima di inviare la risposta, per cui la latenza del disco e' condivisa da tutti i comandi dello stesso blocco.
+Se il buffer e' pieno il MatchingEngine attende che il thread di scrittura lo liberi.
+
+Dopo ogni blocco il thread di scrittura passa i trade scritti, con la loro posizione nel file, al TradeStore;
+con durabilita' batch o event gli chiede poi di rendere durevoli i propri segmenti, prima di sbloccare i client del blocco.
+
+La lettura usa un proprio FileChannel e si ferma all'ultimo record completo, per cui puo' avvenire
+mentre il thread di scrittura continua ad accodare.
+
+################################################################################
+*/
+
+/**
+ * Journal append-only degli ordini e dei trade di un order book, scritto da un thread dedicato a blocchi.
+ * La codifica dei record e' riservata al thread del MatchingEngine che possiede il book.
+ */
+public class OrderJournal implements Runnable {
+
+    // Tipi di record
+    static final byte ORDER = 1;
+    static final byte TRADE = 2;
+    static final byte REST = 3;
+    static final byte CANCEL = 4;
+
+    // Lunghezza massima dell'username nel record, oltre la quale viene troncato
+    private static final int MAX_OWNER_BYTES = 1024;
+    private static final int MAX_RECORD_BYTES = 64 + MAX_OWNER_BYTES;
+
+    /**
+     * Livello di durabilita' richiesto prima di rispondere al client.
+     */
+    public enum Durability {
+        NONE, BATCH, EVENT;
+
+        /**
+         * @param config Proprieta' del server (chiave journal.durability: none, batch o event).
+         * @return La modalita' configurata, batch se non specificata.
+         */
+        public static Durability fromConfig(Properties config) {
+            String mode = config.getProperty("journal.durability", "batch");
+            switch (mode) {
+                case "none": return NONE;
+                case "batch": return BATCH;
+                case "event": return EVENT;
+                default: throw new IllegalArgumentException("Modalita' di durabilita' non valida: " + mode);
+            }
+        }
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final Durability durability;
+
+    // Riceve i trade di ogni blocco dopo la scrittura, dal thread di scrittura (puo' essere null)
+    private final Handler tradeListener;
+    private long fileLength;
+
+    // Buffer in cui il MatchingEngine codifica i record e buffer che il thread di scrittura sta scrivendo, scambiati ad ogni blocco
+    private ByteBuffer active;
+    private ByteBuffer writing;
+
+    // Sequenza dell'ultimo record codificato (scritta solo dal MatchingEngine) e dell'ultimo record reso durevole
+    private long appendedSequence = 0;
+    private volatile long durableSequence = 0;
+    private IOException failure = null;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition(); // il thread di scrittura attende nuovi record
+    private final Condition notFull = lock.newCondition();  // il MatchingEngine attende spazio nel buffer
+    private final Condition durable = lock.newCondition();  // i client attendono la durabilita' del proprio comando
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * Gestore dei record letti dal journal, nell'ordine in cui sono stati scritti.
+     */
+    public interface Handler {
+        default void onOrder(int orderId, OrderBook.Side side, OrderBook.OrderType orderType, int size, int price, int timestamp, String owner) {}
+        default void onTrade(int makerOrderId, int takerOrderId, OrderBook.Side takerSide, OrderBook.OrderType takerOrderType,
+                int price, int size, int timestamp) {}
+        default void onRest(int orderId, OrderBook.Side side, OrderBook.OrderType orderType, int size, int price, int timestamp, String owner) {}
+        default void onCancel(int orderId) {}
+        // Posizione nel journal del record che sta per essere notificato
+        default void onPosition(long position) {}
+        // Fine di un blocco reso durevole (durabilita' batch o event): chiamato dopo i trade del blocco, prima di rispondere ai client
+        default void onDurable() {}
+    }
+
+    /**
+     * Apre il journal in append, creandolo se non esiste, e avvia il thread di scrittura.
+     *
+     * @param file File del journal.
+     * @param durability Livello di durabilita' atteso dai client.
+     * @param bufferSize Dimensione in byte di ciascuno dei due buffer di scrittura.
+     * @param tradeListener Gestore a cui passare i trade scritti, con la loro posizione, oppure null.
+     * @throws IOException Se il file non puo' essere aperto.
+     */
+    public OrderJournal(File file, Durability durability, int bufferSize, Handler tradeListener) throws IOException {
+        this.file = file;
+        this.durability = durability;
+        this.tradeListener = tradeListener;
+        this.channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.fileLength = channel.size();
+        this.active = ByteBuffer.allocateDirect(Math.max(bufferSize, MAX_RECORD_BYTES));
+        this.writing = ByteBuffer.allocateDirect(Math.max(bufferSize, MAX_RECORD_BYTES));
+        this.thread = new Thread(this, "journal-writer-" + file.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    public File getFile() { return file; }
+
+    /**
+     * @return La sequenza dell'ultimo record accodato, da passare ad awaitDurable.
+     */
+    public long getAppendedSequence() { return appendedSequence; }
+
+    /**
+     * Accoda lo stato corrente di un ordine.
+     *
+     * @param order Ordine da registrare.
+     * @throws IOException Se il thread di scrittura ha fallito.
+     */
+    public void appendOrder(OrderBook.Order order) throws IOException {
+        append(ORDER, order);
+    }
+
+    /**
+     * Accoda l'ingresso di un ordine nel book, o di uno stop tra quelli in attesa.
+     *
+     * @param order Ordine entrato nel book.
+     * @throws IOException Se il thread di scrittura ha fallito.
+     */
+    public void appendRest(OrderBook.Order order) throws IOException {
+        append(REST, order);
+    }
+
+    /**
+     * Accoda la cancellazione di un ordine.
+     *
+     * @param orderId ID dell'ordine cancellato.
+     * @throws IOException Se il thread di scrittura ha fallito.
+     */
+    public void appendCancel(int orderId) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve();
+            int start = buffer.position();
+            buffer.putInt(0);
+            buffer.put(CANCEL);
+            buffer.putInt(orderId);
+            commit(buffer, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void append(byte kind, OrderBook.Order order) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve();
+            int start = buffer.position();
+            buffer.putInt(0); // lunghezza, scritta alla fine
+            buffer.put(kind);
+            buffer.putInt(order.getOrderId());
+            buffer.put(order.getType().getCode());
+            buffer.put(order.getOrderType().getCode());
+            buffer.putInt(order.getSize());
+            buffer.putInt(order.getPrice());
+            buffer.putInt(order.getTimestamp());
+            putOwner(buffer, order.getOwner());
+            commit(buffer, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Scrive l'username in UTF-8 direttamente nel buffer, preceduto dalla lunghezza, senza creare l'array di byte:
+    // oltre MAX_OWNER_BYTES viene troncato al carattere precedente
+    private static void putOwner(ByteBuffer buffer, String owner) {
+        int lengthAt = buffer.position();
+        buffer.putShort((short) 0);
+        int start = buffer.position();
+        int end = start + MAX_OWNER_BYTES;
+        for (int i = 0; i < owner.length(); i++) {
+            int c = owner.charAt(i);
+            if (Character.isHighSurrogate((char) c) && i + 1 < owner.length() && Character.isLowSurrogate(owner.charAt(i + 1))) {
+                c = Character.toCodePoint((char) c, owner.charAt(++i));
+            } else if (Character.isSurrogate((char) c)) {
+                c = '?'; // surrogato isolato, come String.getBytes
+            }
+            int bytes = c < 0x80 ? 1 : c < 0x800 ? 2 : c < 0x10000 ? 3 : 4;
+            if (buffer.position() + bytes > end) { break; }
+            if (bytes == 1) {
+                buffer.put((byte) c);
+            } else if (bytes == 2) {
+                buffer.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+            } else if (bytes == 3) {
+                buffer.put((byte) (0xe0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3f))).put((byte) (0x80 | (c & 0x3f)));
+            } else {
+                buffer.put((byte) (0xf0 | (c >> 18))).put((byte) (0x80 | ((c >> 12) & 0x3f)))
+                        .put((byte) (0x80 | ((c >> 6) & 0x3f))).put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+        buffer.putShort(lengthAt, (short) (buffer.position() - start));
+    }
+
+    /**
+     * Accoda un trade eseguito.
+     * Il record (maker, taker, lato e tipo del taker, prezzo, size, timestamp) e' distinto dalla notifica JSON di
+     * OrderBook.Trade.encode: serve al ripristino del book e al TradeStore, che ne usa la posizione come identificativo.
+     *
+     * @param trade Trade da registrare.
+     * @throws IOException Se il thread di scrittura ha fallito.
+     */
+    public void appendTrade(OrderBook.Trade trade) throws IOException {
+        lock.lock();
+        try {
+            ByteBuffer buffer = reserve();
+            int start = buffer.position();
+            buffer.putInt(0);
+            buffer.put(TRADE);
+            buffer.putInt(trade.getMakerOrderId());
+            buffer.putInt(trade.getTakerOrderId());
+            buffer.put(trade.getTakerType().getCode());
+            buffer.putInt(trade.getPrice());
+            buffer.putInt(trade.getSize());
+            buffer.putInt(trade.getTimestamp());
+            buffer.put(trade.getTakerOrderType().getCode());
+            commit(buffer, start);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Restituisce il buffer attivo con spazio per un record, attendendo che il thread di scrittura lo liberi se e' pieno
+    private ByteBuffer reserve() throws IOException {
+        while (failure == null && active.remaining() < MAX_RECORD_BYTES) {
+            notFull.awaitUninterruptibly();
+        }
+        if (failure != null) { throw failure; }
+        return active;
+    }
+
+    // Completa il prefisso di lunghezza, assegna la sequenza al record e sveglia il thread di scrittura
+    private void commit(ByteBuffer buffer, int start) {
+        buffer.putInt(start, buffer.position() - start - Integer.BYTES);
+        appendedSequence++;
+        notEmpty.signal();
+    }
+
+    /**
+     * Attende che il record con la sequenza indicata abbia raggiunto la durabilita' configurata.
+     * Con durabilita' none ritorna subito.
+     *
+     * @param sequence Sequenza ottenuta da getAppendedSequence dopo il comando.
+     * @throws IOException Se la scrittura del journal e' fallita.
+     */
+    public void awaitDurable(long sequence) throws IOException {
+        if (durability == Durability.NONE || durableSequence >= sequence) { return; }
+
+        lock.lock();
+        try {
+            while (failure == null && durableSequence < sequence) {
+                durable.awaitUninterruptibly();
+            }
+            if (failure != null) { throw failure; }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+    Ciclo del thread di scrittura:
+        - attende che il buffer attivo contenga dei record e lo scambia con quello vuoto, sotto lock
+        - fuori dal lock scrive l'intero blocco ed esegue force() secondo la modalita' di durabilita'
+        - pubblica la sequenza resa durevole e sveglia i client in attesa
+    */
+    @Override
+    public void run() {
+        while (true) {
+            long batchEnd;
+            lock.lock();
+            try {
+                while (running && active.position() == 0) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (active.position() == 0) { return; }
+
+                ByteBuffer full = active;
+                active = writing;
+                writing = full;
+                batchEnd = appendedSequence;
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                writing.flip();
+                if (durability == Durability.EVENT) {
+                    writeEachRecord(writing);
+                } else {
+                    writeFully(writing);
+                    if (durability == Durability.BATCH) { channel.force(false); }
+                }
+                notifyTrades(writing);
+                if (durability != Durability.NONE && tradeListener != null) { tradeListener.onDurable(); }
+                writing.clear();
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+
+            lock.lock();
+            try {
+                durableSequence = batchEnd;
+                durable.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // Passa al listener i trade del blocco appena scritto, con la loro posizione nel file
+    private void notifyTrades(ByteBuffer batch) {
+        int end = batch.limit();
+        if (tradeListener != null) {
+            int position = 0;
+            while (position < end) {
+                int length = batch.getInt(position);
+                if (batch.get(position + Integer.BYTES) == TRADE) {
+                    batch.position(position + Integer.BYTES);
+                    tradeListener.onPosition(fileLength + position);
+                    decode(batch, tradeListener);
+                }
+                position += Integer.BYTES + length;
+            }
+        }
+        fileLength += end;
+    }
+
+    // Scrive il blocco un record alla volta, con una force() dopo ognuno
+    private void writeEachRecord(ByteBuffer buffer) throws IOException {
+        int end = buffer.limit();
+        while (buffer.position() < end) {
+            buffer.limit(buffer.position() + Integer.BYTES + buffer.getInt(buffer.position()));
+            writeFully(buffer);
+            channel.force(false);
+            buffer.limit(end);
+        }
+    }
+
+    // Un errore di scrittura viene riportato a tutti i client in attesa e ai comandi successivi
+    private void fail(IOException e) {
+        System.err.println("Errore nella scrittura del journal " + file + ": " + e.getMessage());
+        lock.lock();
+        try {
+            failure = e;
+            durable.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Scrive i record ancora in coda, arresta il thread di scrittura e chiude il journal.
+     *
+     * @throws IOException Se la chiusura fallisce.
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            running = false;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Legge tutti i record completi del journal indicato.
+     * Un record in fondo al file non ancora scritto per intero viene ignorato.
+     *
+     * @param file File del journal.
+     * @param handler Gestore dei record.
+     * @throws IOException Se la lettura fallisce.
+     */
+    public static void read(File file, Handler handler) throws IOException {
+        read(file, 0, handler);
+    }
+
+    /**
+     * Legge i record completi del journal a partire dalla posizione indicata.
+     *
+     * @param file File del journal.
+     * @param from Posizione in byte del primo record da leggere, restituita da una lettura precedente.
+     * @param handler Gestore dei record.
+     * @return La posizione successiva all'ultimo record completo letto.
+     * @throws IOException Se la lettura fallisce.
+     */
+    public static long read(File file, long from, Handler handler) throws IOException {
+        if (!file.exists()) { return from; }
+
+        try (FileChannel in = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer chunk = ByteBuffer.allocate(64 * 1024);
+            long end = in.size();
+            long position = from;
+
+            while (position < end) {
+                chunk.clear();
+                in.read(chunk, position);
+                chunk.flip();
+
+                // Consuma i record completi presenti nel blocco letto
+                int consumed = 0;
+                while (chunk.remaining() >= Integer.BYTES) {
+                    int length = chunk.getInt(chunk.position());
+                    if (length <= 0 || length > chunk.capacity() - Integer.BYTES) {
+                        throw new IOException("Record non valido nel journal " + file + " alla posizione " + (position + consumed));
+                    }
+                    if (chunk.remaining() < Integer.BYTES + length) { break; }
+                    chunk.getInt();
+                    handler.onPosition(position + consumed);
+                    decode(chunk, handler);
+                    consumed += Integer.BYTES + length;
+                    chunk.position(consumed);
+                }
+
+                // Nessun record completo: la coda del file e' ancora in scrittura
+                if (consumed == 0) { break; }
+                position += consumed;
+            }
+            return position;
+        }
+    }
+
+    /**
+     * Elimina dal journal un eventuale record incompleto lasciato da un arresto durante la scrittura,
+     * cosi' le nuove append seguono l'ultimo record valido. Da chiamare prima di aprire il journal.
+     *
+     * @param file File del journal.
+     * @param validLength Posizione successiva all'ultimo record completo, restituita da read.
+     * @throws IOException Se il troncamento fallisce.
+     */
+    public static void truncate(File file, long validLength) throws IOException {
+        if (!file.exists()) { return; }
+
+        try (FileChannel out = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            if (out.size() > validLength) {
+                System.err.println("Journal " + file + ": scartati " + (out.size() - validLength) + " byte di un record incompleto");
+                out.truncate(validLength);
+            }
+        }
+    }
+
+    private static void decode(ByteBuffer chunk, Handler handler) {
+        byte kind = chunk.get();
+        switch (kind) {
+            case ORDER: {
+                int orderId = chunk.getInt();
+                OrderBook.Side side = OrderBook.Side.fromCode(chunk.get());
+                OrderBook.OrderType orderType = OrderBook.OrderType.fromCode(chunk.get());
+                int size = chunk.getInt();
+                int price = chunk.getInt();
+                int timestamp = chunk.getInt();
+                byte[] owner = new byte[chunk.getShort()];
+                chunk.get(owner);
+                handler.onOrder(orderId, side, orderType, size, price, timestamp, new String(owner, StandardCharsets.UTF_8));
+                break;
+            }
+            case REST: {
+                int orderId = chunk.getInt();
+                OrderBook.Side side = OrderBook.Side.fromCode(chunk.get());
+                OrderBook.OrderType orderType = OrderBook.OrderType.fromCode(chunk.get());
+                int size = chunk.getInt();
+                int price = chunk.getInt();
+                int timestamp = chunk.getInt();
+                byte[] owner = new byte[chunk.getShort()];
+                chunk.get(owner);
+                handler.onRest(orderId, side, orderType, size, price, timestamp, new String(owner, StandardCharsets.UTF_8));
+                break;
+            }
+            case CANCEL:
+                handler.onCancel(chunk.getInt());
+                break;
+            case TRADE: {
+                int makerOrderId = chunk.getInt();
+                int takerOrderId = chunk.getInt();
+                OrderBook.Side takerSide = OrderBook.Side.fromCode(chunk.get());
+                int price = chunk.getInt();
+                int size = chunk.getInt();
+                int timestamp = chunk.getInt();
+                OrderBook.OrderType takerOrderType = OrderBook.OrderType.fromCode(chunk.get());
+                handler.onTrade(makerOrderId, takerOrderId, takerSide, takerOrderType, price, size, timestamp);
+                break;
+            }
+            default:
+                throw new IllegalStateException("Tipo di record sconosciuto nel journal: " + kind);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+import java.util.Arrays;
+
+/**
+ * Pool di istanze Order riciclate, usato dal solo thread del MatchingEngine che possiede il book.
+ * Un ordine torna nel pool quando e' completamente eseguito, cancellato o scartato, per cui a regime
+ * il ciclo inserimento-esecuzione-cancellazione non alloca nuovi ordini.
+ */
+public class OrderPool {
+
+    private OrderBook.Order[] free;
+    private int count = 0;
+
+    /**
+     * @param initialSize Numero di ordini preallocati.
+     */
+    public OrderPool(int initialSize) {
+        this.free = new OrderBook.Order[Math.max(1, initialSize)];
+        for (int i = 0; i < initialSize; i++) {
+            free[count++] = new OrderBook.Order();
+        }
+    }
+
+    /**
+     * @return Un ordine libero, riciclato se disponibile.
+     */
+    public OrderBook.Order acquire() {
+        return count > 0 ? free[--count] : new OrderBook.Order();
+    }
+
+    /**
+     * Restituisce un ordine al pool. Dopo questa chiamata l'istanza non deve piu' essere referenziata.
+     *
+     * @param order Ordine non piu' presente nel book ne' nell'indice.
+     */
+    public void release(OrderBook.Order order) {
+        order.reset();
+        if (count == free.length) {
+            free = Arrays.copyOf(free, count * 2);
+        }
+        free[count++] = order;
+    }
+}
@@ -0,0 +1,89 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.LocalDate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Aggregati giornalieri dei trade di uno strumento (apertura, chiusura, massimo, minimo e volume),
+ * aggiornati ad ogni trade e indicizzati per giorno GMT (giorni dall'epoch).
+ * Il MatchingEngine aggiorna i giorni mentre i thread dei client li leggono, per cui ogni DayPriceData
+ * e' aggiornato e copiato sotto il proprio lock.
+ */
+public class PriceHistory {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final ConcurrentHashMap<Integer, OrderBook.DayPriceData> days = new ConcurrentHashMap<>();
+    // Giorno dell'ultimo trade e suoi dati, usati dal thread che aggiorna senza accedere all'indice
+    private int currentDay = Integer.MIN_VALUE;
+    private OrderBook.DayPriceData current = null;
+
+    /**
+     * Aggiorna il giorno del trade; l'indice viene letto solo al cambio di giorno.
+     *
+     * @param price Prezzo del trade.
+     * @param size Quantita' eseguita.
+     * @param timestamp Istante del trade in secondi.
+     */
+    public void onTrade(int price, int size, int timestamp) {
+        int day = timestamp / SECONDS_PER_DAY;
+        if (day != currentDay) {
+            current = days.computeIfAbsent(day, k -> new OrderBook.DayPriceData());
+            currentDay = day;
+        }
+        current.update(price, size);
+    }
+
+    /**
+     * Restituisce i giorni di un mese che hanno avuto trade, con al piu' 31 accessi all'indice.
+     *
+     * @param year Anno richiesto.
+     * @param month Mese richiesto (1-12).
+     * @return Mappa giorno del mese -> copia dei dati del giorno.
+     */
+    public Map<Integer, OrderBook.DayPriceData> getMonth(int year, int month) {
+        LocalDate first = LocalDate.of(year, month, 1);
+        int firstDay = (int) first.toEpochDay();
+        Map<Integer, OrderBook.DayPriceData> result = new HashMap<>();
+
+        for (int day = 0; day < first.lengthOfMonth(); day++) {
+            OrderBook.DayPriceData data = days.get(firstDay + day);
+            if (data != null) { result.put(day + 1, data.copy()); }
+        }
+        return result;
+    }
+
+    /**
+     * Sostituisce il contenuto con una copia di un'altra cronologia.
+     *
+     * @param other Cronologia da copiare, non modificata durante la copia.
+     */
+    public void copyFrom(PriceHistory other) {
+        days.clear();
+        currentDay = Integer.MIN_VALUE;
+        for (Map.Entry<Integer, OrderBook.DayPriceData> entry : other.days.entrySet()) {
+            days.put(entry.getKey(), entry.getValue().copy());
+        }
+    }
+
+    public void write(DataOutputStream out) throws IOException {
+        out.writeInt(days.size());
+        for (Map.Entry<Integer, OrderBook.DayPriceData> entry : days.entrySet()) {
+            out.writeInt(entry.getKey());
+            entry.getValue().write(out);
+        }
+    }
+
+    public void read(DataInputStream in) throws IOException {
+        days.clear();
+        currentDay = Integer.MIN_VALUE;
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            int day = in.readInt();
+            days.put(day, OrderBook.DayPriceData.read(in));
+        }
+    }
+}
@@ -0,0 +1,200 @@
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Lato del book (bid o ask) organizzato per livelli di prezzo.
+ * I prezzi sono scorsi dal migliore al peggiore: decrescenti per il lato bid, crescenti per il lato ask.
+ * Il valore 0 indica l'assenza di un prezzo, per cui i prezzi validi sono sempre positivi.
+ */
+public interface PriceLadder {
+
+    /**
+     * Restituisce il livello di prezzo, se contiene ordini.
+     *
+     * @param price Prezzo del livello.
+     * @return Il livello con la coda FIFO degli ordini a quel prezzo, o null se il livello non esiste.
+     */
+    PriceLevel level(int price);
+
+    /**
+     * Restituisce il livello di prezzo su cui accodare un nuovo ordine, creandolo se necessario.
+     *
+     * @param price Prezzo del livello.
+     * @return Il livello con la coda FIFO degli ordini a quel prezzo.
+     */
+    PriceLevel levelForInsert(int price);
+
+    /**
+     * Indica se il lato puo' contenere un livello al prezzo indicato, da verificare prima di eseguire un ordine.
+     *
+     * @param price Prezzo dell'ordine.
+     * @return true se il prezzo e' positivo (e, per un lato a banda limitata, in banda e multiplo del tick).
+     */
+    boolean accepts(int price);
+
+    /**
+     * Rimuove un livello di prezzo rimasto vuoto.
+     *
+     * @param price Prezzo del livello.
+     */
+    void removeLevel(int price);
+
+    /**
+     * @return Il miglior prezzo del lato, oppure 0 se il lato e' vuoto.
+     */
+    int bestPrice();
+
+    /**
+     * @param price Prezzo di partenza.
+     * @return Il primo prezzo non vuoto peggiore di price, oppure 0 se non esiste.
+     */
+    int nextPrice(int price);
+
+    /**
+     * Costruisce un lato del book secondo la configurazione del server.
+     * Con orderbook.ladder=array i lati sono array limitati dalla banda [orderbook.minPrice, orderbook.maxPrice]
+     * con passo orderbook.tick, altrimenti si usa la skip list senza limiti di prezzo.
+     *
+     * @param config Proprieta' del server.
+     * @param bidSide true per il lato acquisto, false per il lato vendita.
+     * @return Il lato del book richiesto.
+     */
+    static PriceLadder fromConfig(Properties config, boolean bidSide) {
+        String kind = config.getProperty("orderbook.ladder", "skiplist");
+        switch (kind) {
+            case "skiplist":
+                return new SkipListLadder(bidSide);
+            case "array":
+                return new ArrayLadder(
+                        Integer.parseInt(config.getProperty("orderbook.minPrice")),
+                        Integer.parseInt(config.getProperty("orderbook.maxPrice")),
+                        Integer.parseInt(config.getProperty("orderbook.tick", "1")),
+                        bidSide);
+            default:
+                throw new IllegalArgumentException("Tipo di ladder non valido: " + kind);
+        }
+    }
+
+    /**
+     * Lato del book basato su ConcurrentSkipListMap, adatto a strumenti senza una banda di prezzo.
+     */
+    class SkipListLadder implements PriceLadder {
+
+        // Ordinata dal prezzo migliore al peggiore, la prima chiave e' il best price
+        private final ConcurrentSkipListMap<Integer, PriceLevel> segments;
+
+        public SkipListLadder(boolean bidSide) {
+            this.segments = bidSide ? new ConcurrentSkipListMap<>(Comparator.reverseOrder()) : new ConcurrentSkipListMap<>();
+        }
+
+        @Override
+        public PriceLevel level(int price) { return segments.get(price); }
+
+        @Override
+        public PriceLevel levelForInsert(int price) {
+            return segments.computeIfAbsent(price, PriceLevel::new);
+        }
+
+        @Override
+        public boolean accepts(int price) { return price > 0; }
+
+        @Override
+        public void removeLevel(int price) { segments.remove(price); }
+
+        @Override
+        public int bestPrice() {
+            Map.Entry<Integer, PriceLevel> first = segments.firstEntry();
+            return first == null ? 0 : first.getKey();
+        }
+
+        @Override
+        public int nextPrice(int price) {
+            // higherKey segue l'ordinamento della mappa, quindi restituisce il prezzo successivo peggiore
+            Integer next = segments.higherKey(price);
+            return next == null ? 0 : next;
+        }
+    }
+
+    /**
+     * Lato del book come array piatto indicizzato da (price - minPrice) / tick.
+     * I livelli sono allocati una sola volta alla creazione e un BitSet tiene traccia di quelli non vuoti,
+     * cosi' la ricerca del prezzo successivo e' una scansione di bit senza nodi ne' boxing dei prezzi.
+     */
+    class ArrayLadder implements PriceLadder {
+
+        private final int minPrice;
+        private final int tick;
+        private final boolean bidSide;
+        private final PriceLevel[] levels;
+        private final BitSet nonEmpty;
+
+        public ArrayLadder(int minPrice, int maxPrice, int tick, boolean bidSide) {
+            if (minPrice <= 0 || maxPrice < minPrice || tick <= 0) {
+                throw new IllegalArgumentException("Banda di prezzo non valida: [" + minPrice + ", " + maxPrice + "] tick " + tick);
+            }
+            this.minPrice = minPrice;
+            this.tick = tick;
+            this.bidSide = bidSide;
+            int count = (maxPrice - minPrice) / tick + 1;
+            this.levels = new PriceLevel[count];
+            for (int i = 0; i < count; i++) {
+                levels[i] = new PriceLevel(priceOf(i));
+            }
+            this.nonEmpty = new BitSet(count);
+        }
+
+        // Indice del livello, oppure -1 se il prezzo e' fuori banda o non allineato al tick
+        private int indexOf(int price) {
+            int offset = price - minPrice;
+            if (offset < 0 || offset % tick != 0 || offset / tick >= levels.length) { return -1; }
+            return offset / tick;
+        }
+
+        private int priceOf(int index) { return minPrice + index * tick; }
+
+        @Override
+        public PriceLevel level(int price) {
+            int index = indexOf(price);
+            return (index >= 0 && nonEmpty.get(index)) ? levels[index] : null;
+        }
+
+        @Override
+        public PriceLevel levelForInsert(int price) {
+            int index = indexOf(price);
+            if (index < 0) {
+                throw new IllegalArgumentException("Prezzo fuori banda o non multiplo del tick: " + price);
+            }
+            nonEmpty.set(index);
+            return levels[index];
+        }
+
+        @Override
+        public boolean accepts(int price) { return indexOf(price) >= 0; }
+
+        @Override
+        public void removeLevel(int price) {
+            int index = indexOf(price);
+            if (index >= 0) {
+                levels[index].clear();
+                nonEmpty.clear(index);
+            }
+        }
+
+        @Override
+        public int bestPrice() {
+            int index = bidSide ? nonEmpty.previousSetBit(levels.length - 1) : nonEmpty.nextSetBit(0);
+            return index < 0 ? 0 : priceOf(index);
+        }
+
+        @Override
+        public int nextPrice(int price) {
+            int index = indexOf(price);
+            if (index < 0) { return 0; }
+            int next = bidSide ? nonEmpty.previousSetBit(index - 1) : nonEmpty.nextSetBit(index + 1);
+            return next < 0 ? 0 : priceOf(next);
+        }
+    }
+}
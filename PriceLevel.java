@@ -0,0 +1,89 @@
+/**
+ * Livello di prezzo del book: coda FIFO degli ordini allo stesso prezzo.
+ * La coda e' intrusiva, cioe' gli ordini sono collegati tramite i propri campi prev/next, per cui
+ * l'accodamento non alloca nodi e la rimozione di un ordine in mezzo alla coda e' O(1).
+ * Quantita' totale e numero di ordini sono mantenuti ad ogni aggiunta, esecuzione e cancellazione.
+ */
+public class PriceLevel {
+
+    private final int price;
+    private OrderBook.Order head = null; // Ordine piu' vecchio, il primo ad essere eseguito
+    private OrderBook.Order tail = null; // Ordine piu' recente
+    private long totalSize = 0;
+    private int orderCount = 0;
+
+    public PriceLevel(int price) {
+        this.price = price;
+    }
+
+    public int getPrice() { return this.price; }
+    public long getTotalSize() { return this.totalSize; }
+    public int getOrderCount() { return this.orderCount; }
+    public boolean isEmpty() { return this.orderCount == 0; }
+
+    /**
+     * @return L'ordine in testa alla coda, oppure null se il livello e' vuoto.
+     */
+    public OrderBook.Order peek() { return this.head; }
+
+    /**
+     * Accoda un ordine in fondo al livello.
+     *
+     * @param order Ordine da accodare, non deve appartenere ad altri livelli.
+     */
+    public void add(OrderBook.Order order) {
+        order.setPrev(tail);
+        order.setNext(null);
+        if (tail == null) {
+            head = order;
+        } else {
+            tail.setNext(order);
+        }
+        tail = order;
+        order.setLevel(this);
+
+        totalSize += order.getSize();
+        orderCount++;
+    }
+
+    /**
+     * Scollega un ordine dal livello in qualunque posizione si trovi.
+     *
+     * @param order Ordine appartenente a questo livello.
+     */
+    public void remove(OrderBook.Order order) {
+        OrderBook.Order prev = order.getPrev();
+        OrderBook.Order next = order.getNext();
+        if (prev == null) { head = next; } else { prev.setNext(next); }
+        if (next == null) { tail = prev; } else { next.setPrev(prev); }
+        order.setPrev(null);
+        order.setNext(null);
+        order.setLevel(null);
+
+        totalSize -= order.getSize();
+        orderCount--;
+    }
+
+    /**
+     * Riduce la quantita' di un ordine parzialmente eseguito, lasciandolo al suo posto nella coda.
+     *
+     * @param order Ordine appartenente a questo livello.
+     * @param quantity Quantita' eseguita, minore della size dell'ordine.
+     */
+    public void reduce(OrderBook.Order order, int quantity) {
+        order.setSize(order.getSize() - quantity);
+        totalSize -= quantity;
+    }
+
+    /**
+     * Svuota il livello scollegando tutti gli ordini rimasti.
+     */
+    public void clear() {
+        while (head != null) { remove(head); }
+    }
+
+    @Override
+    public String toString() {
+        return "PriceLevel{price=" + price + ", orders=" + orderCount + ", size=" + totalSize + "}";
+    }
+}
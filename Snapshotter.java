@@ -0,0 +1,56 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread che aggiorna periodicamente lo snapshot di un order book rileggendo la coda del journal.
+ * Non accede al book ne' al MatchingEngine, per cui il matching prosegue mentre lo snapshot viene preso.
+ */
+public class Snapshotter implements Runnable {
+
+    private final BookSnapshot state;
+    private final File journal;
+    private final File snapshot;
+    private final long intervalNanos;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param state Stato gia' allineato al journal, posseduto da questo thread da qui in avanti.
+     * @param journal File del journal da seguire.
+     * @param snapshot File dello snapshot da aggiornare.
+     * @param intervalSeconds Intervallo tra due snapshot.
+     */
+    public Snapshotter(BookSnapshot state, File journal, File snapshot, int intervalSeconds) {
+        this.state = state;
+        this.journal = journal;
+        this.snapshot = snapshot;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.thread = new Thread(this, "snapshot-" + snapshot.getName());
+        this.thread.setDaemon(true);
+    }
+
+    public void start() { thread.start(); }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            LockSupport.parkNanos(intervalNanos);
+            try {
+                // Se dall'ultimo snapshot non ci sono nuovi record il file resta invariato
+                if (state.catchUp(journal)) {
+                    state.save(snapshot);
+                }
+            } catch (IOException e) {
+                System.err.println("Errore durante lo snapshot " + snapshot + ": " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,385 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/*
+################################################################################
+
+L'archivio e' la forma compatta di un giorno di trade chiuso, in trades_<SYMBOL>/<yyyyMMdd>.tcol.
+I trade sono divisi in blocchi di BLOCK_RECORDS, ognuno con statistiche in chiaro seguite dalle colonne compresse:
+	- intestazione del file: int MAGIC, int numero di blocchi, long ultimo tradeId, long numero di trade
+	- intestazione del blocco: int trade, int timestamp minimo e massimo, int prezzo minimo e massimo,
+	  int apertura e chiusura, long volume, int byte delle colonne, int byte compressi
+	- colonne del blocco, una dopo l'altra e compresse insieme con Deflater:
+		tradeId          delta dal precedente, varint
+		timestamp        delta-of-delta, zigzag varint (i trade di un blocco sono quasi sempre a distanza costante)
+		prezzo           delta dal precedente, zigzag varint
+		quantita'        varint
+		maker e taker    delta dal precedente, zigzag varint
+		lato e tipo      un byte per trade (lato nei 4 bit alti, tipo nei 4 bassi)
+
+Le statistiche permettono alle interrogazioni aggregate di saltare i blocchi fuori dall'intervallo e di usare
+direttamente apertura, chiusura, massimo, minimo e volume dei blocchi interamente contenuti, decomprimendo solo quelli di bordo.
+
+################################################################################
+*/
+
+/**
+ * Archivio colonnare compresso dei trade di un giorno chiuso, scritto una sola volta dal TradeCompactor.
+ * Dopo l'apertura e' immutabile e puo' essere letto da piu' thread.
+ */
+public class TradeArchive {
+
+    private static final int MAGIC = 0x54434f4c; // "TCOL"
+    private static final int FILE_HEADER_BYTES = 4 + 4 + 8 + 8;
+    private static final int BLOCK_HEADER_BYTES = 7 * 4 + 8 + 4 + 4;
+    static final int BLOCK_RECORDS = 4096;
+    // Caso peggiore di un trade nelle colonne: 10 byte per ogni varint a 64 bit e il byte di lato e tipo
+    private static final int MAX_RECORD_BYTES = 6 * 10 + 1;
+
+    /**
+     * Sorgente dei trade da archiviare (il segmento mappato di un giorno), letti dal primo all'ultimo.
+     */
+    public interface Source {
+        void forEach(Reader reader);
+    }
+
+    /**
+     * Destinatario dei trade letti da una sorgente o da un blocco.
+     */
+    public interface Reader {
+        void onTrade(long tradeId, int timestamp, int price, int size, int makerOrderId, int takerOrderId,
+                OrderBook.Side takerSide, OrderBook.OrderType takerOrderType);
+    }
+
+    private final File file;
+    private final long lastTradeId;
+    private final long records;
+
+    // Directory dei blocchi, letta all'apertura
+    private final int blocks;
+    private final int[] counts;
+    private final int[] minTimestamps, maxTimestamps;
+    private final int[] minPrices, maxPrices;
+    private final int[] openPrices, closePrices;
+    private final long[] volumes;
+    private final int[] rawLengths, compressedLengths;
+    private final long[] offsets;
+
+    private TradeArchive(File file, long lastTradeId, long records, int blocks) {
+        this.file = file;
+        this.lastTradeId = lastTradeId;
+        this.records = records;
+        this.blocks = blocks;
+        this.counts = new int[blocks];
+        this.minTimestamps = new int[blocks];
+        this.maxTimestamps = new int[blocks];
+        this.minPrices = new int[blocks];
+        this.maxPrices = new int[blocks];
+        this.openPrices = new int[blocks];
+        this.closePrices = new int[blocks];
+        this.volumes = new long[blocks];
+        this.rawLengths = new int[blocks];
+        this.compressedLengths = new int[blocks];
+        this.offsets = new long[blocks];
+    }
+
+    public File getFile() { return file; }
+    public long getLastTradeId() { return lastTradeId; }
+    public long getRecords() { return records; }
+
+    /**
+     * Legge la directory dei blocchi di un archivio.
+     *
+     * @param file File dell'archivio.
+     * @return L'archivio aperto.
+     * @throws IOException Se il file non e' un archivio valido.
+     */
+    public static TradeArchive open(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer header = readFully(channel, 0, FILE_HEADER_BYTES);
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Archivio di trade non valido: " + file);
+            }
+            int blocks = header.getInt();
+            TradeArchive archive = new TradeArchive(file, header.getLong(), header.getLong(), blocks);
+
+            long position = FILE_HEADER_BYTES;
+            for (int block = 0; block < blocks; block++) {
+                ByteBuffer stats = readFully(channel, position, BLOCK_HEADER_BYTES);
+                archive.counts[block] = stats.getInt();
+                archive.minTimestamps[block] = stats.getInt();
+                archive.maxTimestamps[block] = stats.getInt();
+                archive.minPrices[block] = stats.getInt();
+                archive.maxPrices[block] = stats.getInt();
+                archive.openPrices[block] = stats.getInt();
+                archive.closePrices[block] = stats.getInt();
+                archive.volumes[block] = stats.getLong();
+                archive.rawLengths[block] = stats.getInt();
+                archive.compressedLengths[block] = stats.getInt();
+                archive.offsets[block] = position + BLOCK_HEADER_BYTES;
+                position = archive.offsets[block] + archive.compressedLengths[block];
+            }
+            return archive;
+        }
+    }
+
+    /**
+     * Scrive l'archivio di una sorgente in un file temporaneo e lo sostituisce atomicamente al file indicato,
+     * per cui un arresto durante la compattazione non lascia archivi parziali.
+     *
+     * @param source Trade del giorno, in ordine di esecuzione.
+     * @param file File dell'archivio da creare.
+     * @return L'archivio scritto, gia' aperto.
+     * @throws IOException Se la scrittura fallisce.
+     */
+    public static TradeArchive write(Source source, File file) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        BlockWriter writer = new BlockWriter();
+        try (FileOutputStream stream = new FileOutputStream(tmp)) {
+            writer.channel = stream.getChannel();
+            writer.channel.position(FILE_HEADER_BYTES);
+            try {
+                source.forEach(writer);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            writer.flush();
+
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_BYTES);
+            header.putInt(MAGIC).putInt(writer.blocks).putLong(writer.lastTradeId).putLong(writer.records).flip();
+            writer.channel.write(header, 0);
+            writer.channel.force(true);
+        } finally {
+            writer.deflater.end();
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(file);
+    }
+
+    // Accumula i trade di un blocco nelle colonne e scrive il blocco compresso quando e' pieno
+    private static final class BlockWriter implements Reader {
+        final Deflater deflater = new Deflater();
+        final long[] tradeIds = new long[BLOCK_RECORDS];
+        final int[] timestamps = new int[BLOCK_RECORDS];
+        final int[] prices = new int[BLOCK_RECORDS];
+        final int[] sizes = new int[BLOCK_RECORDS];
+        final int[] makers = new int[BLOCK_RECORDS];
+        final int[] takers = new int[BLOCK_RECORDS];
+        final byte[] flags = new byte[BLOCK_RECORDS];
+        final ByteBuffer raw = ByteBuffer.allocate(BLOCK_RECORDS * MAX_RECORD_BYTES);
+        byte[] compressed = new byte[BLOCK_RECORDS * MAX_RECORD_BYTES];
+
+        FileChannel channel;
+        int count = 0;
+        int blocks = 0;
+        long records = 0;
+        long lastTradeId = -1;
+
+        @Override
+        public void onTrade(long tradeId, int timestamp, int price, int size, int makerOrderId, int takerOrderId,
+                OrderBook.Side takerSide, OrderBook.OrderType takerOrderType) {
+            tradeIds[count] = tradeId;
+            timestamps[count] = timestamp;
+            prices[count] = price;
+            sizes[count] = size;
+            makers[count] = makerOrderId;
+            takers[count] = takerOrderId;
+            flags[count] = (byte) (takerSide.getCode() << 4 | takerOrderType.getCode());
+            if (++count == BLOCK_RECORDS) {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        }
+
+        void flush() throws IOException {
+            if (count == 0) { return; }
+
+            int minTimestamp = Integer.MAX_VALUE, maxTimestamp = Integer.MIN_VALUE;
+            int minPrice = Integer.MAX_VALUE, maxPrice = Integer.MIN_VALUE;
+            long volume = 0;
+            for (int i = 0; i < count; i++) {
+                minTimestamp = Math.min(minTimestamp, timestamps[i]);
+                maxTimestamp = Math.max(maxTimestamp, timestamps[i]);
+                minPrice = Math.min(minPrice, prices[i]);
+                maxPrice = Math.max(maxPrice, prices[i]);
+                volume += sizes[i];
+            }
+
+            raw.clear();
+            long previousId = 0;
+            for (int i = 0; i < count; i++) { putVarint(raw, tradeIds[i] - previousId); previousId = tradeIds[i]; }
+            long previousTimestamp = 0, previousDelta = 0;
+            for (int i = 0; i < count; i++) {
+                long delta = timestamps[i] - previousTimestamp;
+                putVarint(raw, zigzag(delta - previousDelta));
+                previousTimestamp = timestamps[i];
+                previousDelta = delta;
+            }
+            long previousPrice = 0;
+            for (int i = 0; i < count; i++) { putVarint(raw, zigzag(prices[i] - previousPrice)); previousPrice = prices[i]; }
+            for (int i = 0; i < count; i++) { putVarint(raw, sizes[i] & 0xffffffffL); }
+            long previousMaker = 0;
+            for (int i = 0; i < count; i++) { putVarint(raw, zigzag(makers[i] - previousMaker)); previousMaker = makers[i]; }
+            long previousTaker = 0;
+            for (int i = 0; i < count; i++) { putVarint(raw, zigzag(takers[i] - previousTaker)); previousTaker = takers[i]; }
+            raw.put(flags, 0, count);
+
+            deflater.reset();
+            deflater.setInput(raw.array(), 0, raw.position());
+            deflater.finish();
+            int compressedLength = 0;
+            while (!deflater.finished()) {
+                if (compressedLength == compressed.length) { compressed = Arrays.copyOf(compressed, compressed.length * 2); }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length - compressedLength);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(BLOCK_HEADER_BYTES);
+            header.putInt(count).putInt(minTimestamp).putInt(maxTimestamp).putInt(minPrice).putInt(maxPrice)
+                    .putInt(prices[0]).putInt(prices[count - 1]).putLong(volume)
+                    .putInt(raw.position()).putInt(compressedLength).flip();
+            writeFully(channel, header);
+            writeFully(channel, ByteBuffer.wrap(compressed, 0, compressedLength));
+
+            blocks++;
+            records += count;
+            lastTradeId = tradeIds[count - 1];
+            count = 0;
+        }
+    }
+
+    /**
+     * Aggrega i trade con timestamp compreso tra from e to (inclusi).
+     * I blocchi fuori dall'intervallo sono saltati, quelli interamente contenuti contribuiscono con le proprie statistiche
+     * e solo i blocchi a cavallo dei limiti vengono decompressi.
+     *
+     * @param from Inizio dell'intervallo, in secondi.
+     * @param to Fine dell'intervallo, in secondi.
+     * @param data Dati del giorno da aggiornare, in ordine di esecuzione.
+     * @throws IOException Se la lettura di un blocco fallisce.
+     */
+    public void aggregate(int from, int to, OrderBook.DayPriceData data) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int block = 0; block < blocks; block++) {
+                if (maxTimestamps[block] < from || minTimestamps[block] > to) { continue; }
+                if (minTimestamps[block] >= from && maxTimestamps[block] <= to) {
+                    data.merge(openPrices[block], closePrices[block], maxPrices[block], minPrices[block], volumes[block]);
+                } else {
+                    readBlock(channel, block, (tradeId, timestamp, price, size, maker, taker, side, type) -> {
+                        if (timestamp >= from && timestamp <= to) { data.update(price, size); }
+                    });
+                }
+            }
+        }
+    }
+
+    /**
+     * Legge i trade con timestamp compreso tra from e to (inclusi), decomprimendo solo i blocchi che li contengono.
+     */
+    public void scan(int from, int to, Reader reader) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            for (int block = 0; block < blocks; block++) {
+                if (maxTimestamps[block] < from || minTimestamps[block] > to) { continue; }
+                readBlock(channel, block, (tradeId, timestamp, price, size, maker, taker, side, type) -> {
+                    if (timestamp >= from && timestamp <= to) {
+                        reader.onTrade(tradeId, timestamp, price, size, maker, taker, side, type);
+                    }
+                });
+            }
+        }
+    }
+
+    // Decomprime un blocco e ne ricompone i trade a partire dalle colonne
+    private void readBlock(FileChannel channel, int block, Reader reader) throws IOException {
+        ByteBuffer compressed = readFully(channel, offsets[block], compressedLengths[block]);
+        byte[] bytes = new byte[rawLengths[block]];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(compressed.array(), 0, compressedLengths[block]);
+            int length = 0;
+            while (length < bytes.length && !inflater.finished()) {
+                length += inflater.inflate(bytes, length, bytes.length - length);
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Blocco " + block + " di " + file + " corrotto", e);
+        } finally {
+            inflater.end();
+        }
+
+        int count = counts[block];
+        ByteBuffer raw = ByteBuffer.wrap(bytes);
+        long[] tradeIds = new long[count];
+        int[] timestamps = new int[count], prices = new int[count], sizes = new int[count];
+        int[] makers = new int[count], takers = new int[count];
+
+        long previous = 0;
+        for (int i = 0; i < count; i++) { previous += getVarint(raw); tradeIds[i] = previous; }
+        long timestamp = 0, delta = 0;
+        for (int i = 0; i < count; i++) {
+            delta += unzigzag(getVarint(raw));
+            timestamp += delta;
+            timestamps[i] = (int) timestamp;
+        }
+        previous = 0;
+        for (int i = 0; i < count; i++) { previous += unzigzag(getVarint(raw)); prices[i] = (int) previous; }
+        for (int i = 0; i < count; i++) { sizes[i] = (int) getVarint(raw); }
+        previous = 0;
+        for (int i = 0; i < count; i++) { previous += unzigzag(getVarint(raw)); makers[i] = (int) previous; }
+        previous = 0;
+        for (int i = 0; i < count; i++) { previous += unzigzag(getVarint(raw)); takers[i] = (int) previous; }
+
+        for (int i = 0; i < count; i++) {
+            byte flag = raw.get();
+            reader.onTrade(tradeIds[i], timestamps[i], prices[i], sizes[i], makers[i], takers[i],
+                    OrderBook.Side.fromCode((byte) (flag >> 4 & 0x0f)), OrderBook.OrderType.fromCode((byte) (flag & 0x0f)));
+        }
+    }
+
+    private static long zigzag(long value) { return (value << 1) ^ (value >> 63); }
+    private static long unzigzag(long value) { return (value >>> 1) ^ -(value & 1); }
+
+    private static void putVarint(ByteBuffer buffer, long value) {
+        while ((value & ~0x7fL) != 0) {
+            buffer.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    private static long getVarint(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) { return value; }
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Fine inattesa dell'archivio");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) { channel.write(buffer); }
+    }
+}
@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Thread che archivia periodicamente i segmenti dei giorni chiusi di un TradeStore in forma colonnare compressa.
+ * Non accede al book ne' al MatchingEngine, per cui il matching prosegue durante la compattazione.
+ */
+public class TradeCompactor implements Runnable {
+
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+
+    private final TradeStore store;
+    private final long intervalNanos;
+
+    private final Thread thread;
+    private volatile boolean running = true;
+
+    /**
+     * @param store Archivio dei trade da compattare, gia' aperto.
+     * @param name Nome dello strumento, usato per il thread.
+     * @param intervalSeconds Intervallo tra due controlli.
+     */
+    public TradeCompactor(TradeStore store, String name, int intervalSeconds) {
+        this.store = store;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+        this.thread = new Thread(this, "compactor-" + name);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() { thread.start(); }
+
+    public void stop() {
+        running = false;
+        LockSupport.unpark(thread);
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                // Solo i giorni GMT gia' conclusi: quello corrente riceve ancora trade
+                int today = (int) Math.floorDiv(Instant.now().getEpochSecond(), (long) SECONDS_PER_DAY);
+                store.compact(today);
+            } catch (IOException e) {
+                System.err.println("Errore durante la compattazione dei trade: " + e.getMessage());
+            }
+            LockSupport.parkNanos(intervalNanos);
+        }
+    }
+}
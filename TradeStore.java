@@ -0,0 +1,504 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/*
+################################################################################
+
+Il TradeStore conserva i trade di uno strumento partizionati per giorno GMT, in trades_<SYMBOL>/<yyyyMMdd>.tlog.
+Ogni segmento e' un file mappato in memoria (MappedByteBuffer) con un'intestazione e record a lunghezza fissa:
+	- intestazione (HEADER_BYTES): int MAGIC, int RECORD_BYTES, long numero di record completi
+	- record (RECORD_BYTES, allineati a 8 byte):
+		long tradeId       posizione del trade nel journal, crescente, usata anche per non registrare due volte lo stesso trade
+		int timestamp, int price, int size, int makerOrderId, int takerOrderId
+		byte lato del taker, byte tipo dell'ordine taker, 2 byte di allineamento
+
+Il thread di scrittura del journal scrive i record direttamente nella mappatura e solo dopo aggiorna il numero di record,
+sia nell'intestazione che in memoria, con semantica release: chi legge quel numero vede sempre record completi,
+e all'avvio un record scritto a meta' da un arresto non viene contato.
+Il file cresce a passi di GROW_BYTES rimappandolo, senza copiare i record gia' scritti.
+
+Le letture (cronologia per intervallo) scorrono la mappatura con accessi assoluti, senza copie e senza creare
+oggetti Order o stringhe per i record. Un indice sparso in memoria, con il timestamp di un record ogni INDEX_STRIDE,
+permette di iniziare dal blocco che contiene il primo trade utile; e' ricostruito dalla mappatura alla prima lettura.
+
+Il journal resta la fonte di verita': all'avvio il TradeStore recupera i trade successivi all'ultimo registrato,
+e allo stesso modo dopo un errore di scrittura li rilegge dal journal al trade successivo.
+Se il journal e' stato troncato (record non resi durevoli prima di un arresto), i trade registrati oltre la sua fine
+non esistono piu': all'avvio vengono scartati dai segmenti e dagli archivi, altrimenti i nuovi trade scritti in quelle
+posizioni verrebbero ignorati come gia' presenti.
+
+La mappatura non viene resa durevole dal journal: con durabilita' batch o event, dopo ogni blocco il journal chiama onDurable
+e il TradeStore esegue force() dei record scritti dall'ultima volta e poi dell'intestazione, prima che i client ricevano risposta.
+Il segmento di un giorno che si chiude viene reso durevole al cambio di giorno.
+
+Chiuso un giorno, il TradeCompactor riscrive il suo segmento in un archivio colonnare compresso (<yyyyMMdd>.tcol, vedi TradeArchive)
+e cancella il file mappato; da quel momento le letture del giorno passano dall'archivio.
+
+################################################################################
+*/
+
+/**
+ * Archivio dei trade di uno strumento, partizionato per giorno in segmenti mappati in memoria a record fissi.
+ * Un solo thread scrive (quello del journal), piu' thread possono leggere con scan.
+ */
+public class TradeStore implements OrderJournal.Handler {
+
+    private static final int MAGIC = 0x544c4f47; // "TLOG"
+    static final int HEADER_BYTES = 64;
+    static final int RECORD_BYTES = 32;
+    private static final int COUNT_OFFSET = 8;
+    private static final long GROW_BYTES = RECORD_BYTES * 32768L;
+    private static final int INDEX_STRIDE = 128;
+    private static final int SECONDS_PER_DAY = 24 * 60 * 60;
+    private static final DateTimeFormatter DAY_FORMAT = DateTimeFormatter.BASIC_ISO_DATE;
+
+    // Offset dei campi nel record
+    private static final int TRADE_ID = 0;
+    private static final int TIMESTAMP = 8;
+    private static final int PRICE = 12;
+    private static final int SIZE = 16;
+    private static final int MAKER_ID = 20;
+    private static final int TAKER_ID = 24;
+    private static final int SIDE = 28;
+    private static final int ORDER_TYPE = 29;
+
+    // Accesso al numero di record nell'intestazione con semantica acquire/release
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    /**
+     * Segmento di un giorno: mappatura del file, numero di record pubblicati e indice sparso.
+     */
+    private static final class Segment {
+        final int day;
+        final File file;
+
+        // Sostituita dal thread di scrittura quando il file cresce, prima di pubblicare record oltre la vecchia dimensione
+        volatile MappedByteBuffer map;
+        volatile long records;
+        // Record gia' resi durevoli con force(), usato solo dal thread di scrittura
+        long forcedRecords = 0;
+
+        // Indice sparso: timestamp del record i * INDEX_STRIDE, costruito alla prima lettura
+        private int[] timestamps = null;
+        private int entries = 0;
+
+        Segment(File directory, int day) {
+            this.day = day;
+            this.file = new File(directory, LocalDate.ofEpochDay(day).format(DAY_FORMAT) + ".tlog");
+        }
+
+        static long offsetOf(long record) { return HEADER_BYTES + record * RECORD_BYTES; }
+
+        // Aggiunge all'indice i blocchi pubblicati dopo l'ultima lettura
+        private void extendIndex(MappedByteBuffer map, long records) {
+            if (timestamps == null) { timestamps = new int[16]; }
+            for (long record = (long) entries * INDEX_STRIDE; record < records; record += INDEX_STRIDE) {
+                if (entries == timestamps.length) { timestamps = Arrays.copyOf(timestamps, entries * 2); }
+                timestamps[entries++] = map.getInt((int) offsetOf(record) + TIMESTAMP);
+            }
+        }
+
+        // Primo record del blocco da cui leggere per trovare il primo trade con timestamp >= from
+        synchronized long seek(MappedByteBuffer map, long records, int from) {
+            extendIndex(map, records);
+            int low = 0, high = entries - 1, found = -1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (timestamps[mid] < from) { found = mid; low = mid + 1; } else { high = mid - 1; }
+            }
+            return found < 0 ? 0 : (long) found * INDEX_STRIDE;
+        }
+    }
+
+    private final File directory;
+    private final ConcurrentHashMap<Integer, Segment> segments = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Integer, TradeArchive> archives = new ConcurrentHashMap<>();
+
+    // Stato del thread di scrittura, current e' letto anche dal TradeCompactor
+    private volatile Segment current = null;
+    private FileChannel currentChannel = null;
+    // Letto anche dai thread dei client per sapere se sono arrivati nuovi trade
+    private volatile long lastTradeId = -1;
+    private long recordPosition = 0;
+    // Journal da cui rileggere i trade non registrati dopo un errore di scrittura
+    private File journal;
+    // Errore dell'ultima scrittura: finche' non viene recuperato lastTradeId non avanza oltre il trade mancante
+    private IOException failure = null;
+    private boolean recovering = false;
+
+    /**
+     * @param directory Cartella dei segmenti dello strumento.
+     */
+    public TradeStore(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Mappa i segmenti esistenti e registra i trade del journal successivi all'ultimo presente.
+     * Da chiamare prima di avviare il journal.
+     *
+     * @param journal File del journal dello strumento.
+     * @throws IOException Se segmenti o journal non possono essere letti.
+     */
+    public void open(File journal) throws IOException {
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Impossibile creare la cartella dei trade: " + directory);
+        }
+
+        // I trade con posizione oltre la fine del journal non sono piu' nella fonte di verita'
+        long journalLength = journal.exists() ? journal.length() : 0;
+
+        File[] compacted = directory.listFiles((dir, name) -> name.endsWith(".tcol"));
+        for (File file : compacted == null ? new File[0] : compacted) {
+            TradeArchive archive = discardFrom(TradeArchive.open(file), journalLength);
+            if (archive == null) { continue; }
+            archives.put(dayOf(file), archive);
+            lastTradeId = Math.max(lastTradeId, archive.getLastTradeId());
+        }
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".tlog"));
+        for (File file : files == null ? new File[0] : files) {
+            int day = dayOf(file);
+            if (archives.containsKey(day)) {
+                // Arresto tra la scrittura dell'archivio e la cancellazione del segmento: l'archivio e' gia' completo
+                Files.delete(file.toPath());
+                continue;
+            }
+            Segment segment = new Segment(directory, day);
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                mapForRead(segment, channel);
+            }
+            discardFrom(segment, journalLength);
+            segments.put(day, segment);
+            if (segment.records > 0) {
+                long tradeId = segment.map.getLong((int) Segment.offsetOf(segment.records - 1) + TRADE_ID);
+                lastTradeId = Math.max(lastTradeId, tradeId);
+            }
+        }
+
+        // I trade scritti nel journal ma non ancora nel TradeStore al momento dell'arresto
+        this.journal = journal;
+        OrderJournal.read(journal, Math.max(0, lastTradeId), this);
+        if (failure != null) { throw failure; }
+    }
+
+    private static int dayOf(File file) {
+        String name = file.getName();
+        return (int) LocalDate.parse(name.substring(0, name.lastIndexOf('.')), DAY_FORMAT).toEpochDay();
+    }
+
+    // Mappa in sola lettura un segmento esistente e ne legge il numero di record dall'intestazione
+    private static void mapForRead(Segment segment, FileChannel channel) throws IOException {
+        if (channel.size() < HEADER_BYTES) {
+            segment.records = 0;
+            return;
+        }
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        if (map.getInt(0) != MAGIC || map.getInt(4) != RECORD_BYTES) {
+            throw new IOException("Segmento di trade non valido: " + segment.file);
+        }
+        long records = (long) LONGS.getAcquire(map, COUNT_OFFSET);
+        segment.records = Math.min(records, (channel.size() - HEADER_BYTES) / RECORD_BYTES);
+        segment.forcedRecords = segment.records;
+        segment.map = map;
+    }
+
+    // Scarta dal segmento i record in coda con tradeId oltre la fine del journal, aggiornando il numero di record nel file
+    private static void discardFrom(Segment segment, long journalLength) throws IOException {
+        long kept = segment.records;
+        while (kept > 0 && segment.map.getLong((int) Segment.offsetOf(kept - 1) + TRADE_ID) >= journalLength) { kept--; }
+        if (kept == segment.records) { return; }
+
+        try (FileChannel channel = FileChannel.open(segment.file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            LONGS.setRelease(header, COUNT_OFFSET, kept);
+            header.force();
+        }
+        System.err.println("Segmento " + segment.file + ": scartati " + (segment.records - kept)
+                + " trade oltre la fine del journal (" + journalLength + " byte)");
+        segment.records = kept;
+        segment.forcedRecords = kept;
+    }
+
+    // Riscrive un archivio senza i trade oltre la fine del journal; restituisce null (e cancella il file) se non ne resta nessuno
+    private static TradeArchive discardFrom(TradeArchive archive, long journalLength) throws IOException {
+        if (archive.getLastTradeId() < journalLength) { return archive; }
+
+        long records = archive.getRecords();
+        TradeArchive kept = TradeArchive.write(reader -> {
+            try {
+                archive.scan(Integer.MIN_VALUE, Integer.MAX_VALUE, (tradeId, timestamp, price, size, maker, taker, side, type) -> {
+                    if (tradeId < journalLength) { reader.onTrade(tradeId, timestamp, price, size, maker, taker, side, type); }
+                });
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }, archive.getFile());
+        System.err.println("Archivio " + archive.getFile() + ": scartati " + (records - kept.getRecords())
+                + " trade oltre la fine del journal (" + journalLength + " byte)");
+        if (kept.getRecords() == 0) {
+            Files.delete(kept.getFile().toPath());
+            return null;
+        }
+        return kept;
+    }
+
+    /**
+     * @return Identificativo dell'ultimo trade registrato (la sua posizione nel journal), -1 se non ce ne sono.
+     */
+    public long getLastTradeId() { return lastTradeId; }
+
+    @Override
+    public void onPosition(long position) {
+        recordPosition = position;
+    }
+
+    /**
+     * Registra un trade letto dal journal; il suo identificativo e' la posizione nel journal comunicata da onPosition.
+     * I trade gia' presenti vengono ignorati.
+     * Dopo un errore di scrittura i trade successivi non vengono registrati: al trade seguente si riprova
+     * rileggendo il journal dall'ultimo trade registrato, per cui l'archivio non resta mai con un buco.
+     */
+    @Override
+    public void onTrade(int makerOrderId, int takerOrderId, OrderBook.Side takerSide, OrderBook.OrderType takerOrderType,
+            int price, int size, int timestamp) {
+        if (recordPosition <= lastTradeId) { return; }
+        if (failure != null && !recovering) { recover(); }
+        if (failure != null || recordPosition <= lastTradeId) { return; }
+
+        try {
+            Segment segment = segmentForWrite(Math.floorDiv(timestamp, SECONDS_PER_DAY));
+            long record = segment.records;
+            MappedByteBuffer map = ensureCapacity(segment, record + 1);
+
+            int offset = (int) Segment.offsetOf(record);
+            map.putLong(offset + TRADE_ID, recordPosition);
+            map.putInt(offset + TIMESTAMP, timestamp);
+            map.putInt(offset + PRICE, price);
+            map.putInt(offset + SIZE, size);
+            map.putInt(offset + MAKER_ID, makerOrderId);
+            map.putInt(offset + TAKER_ID, takerOrderId);
+            map.put(offset + SIDE, takerSide.getCode());
+            map.put(offset + ORDER_TYPE, takerOrderType.getCode());
+
+            // Il record e' completo: solo ora viene contato, nel file e per i lettori
+            LONGS.setRelease(map, COUNT_OFFSET, record + 1);
+            segment.records = record + 1;
+            lastTradeId = recordPosition;
+        } catch (IOException e) {
+            failure = e;
+            System.err.println("Errore nella scrittura del trade in " + directory + ": " + e.getMessage()
+                    + ", i trade successivi a " + lastTradeId + " verranno riletti dal journal");
+        }
+    }
+
+    /**
+     * Rende durevoli i record del segmento in scrittura, chiamato dal journal dopo ogni blocco reso durevole.
+     * Un errore viene solo segnalato: il journal e' gia' durevole e all'avvio i trade mancanti vengono riletti da li'.
+     */
+    @Override
+    public void onDurable() {
+        Segment segment = current;
+        if (segment == null) { return; }
+        try {
+            force(segment);
+        } catch (UncheckedIOException e) {
+            System.err.println("Errore nella force() del segmento " + segment.file + ": " + e.getMessage());
+        }
+    }
+
+    // Prima i record scritti dall'ultima force(), poi l'intestazione che li conta
+    private static void force(Segment segment) {
+        long records = segment.records;
+        if (records == segment.forcedRecords) { return; }
+
+        MappedByteBuffer map = segment.map;
+        int from = (int) Segment.offsetOf(segment.forcedRecords);
+        map.force(from, (int) Segment.offsetOf(records) - from);
+        map.force(0, HEADER_BYTES);
+        segment.forcedRecords = records;
+    }
+
+    // Rilegge dal journal i trade successivi all'ultimo registrato; il journal contiene gia' il trade corrente
+    private void recover() {
+        long position = recordPosition;
+        failure = null;
+        recovering = true;
+        try {
+            OrderJournal.read(journal, Math.max(0, lastTradeId), this);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            recovering = false;
+            recordPosition = position;
+        }
+    }
+
+    // Segmento del giorno indicato mappato in scrittura, cambiato solo quando cambia il giorno dei trade
+    private Segment segmentForWrite(int day) throws IOException {
+        if (current != null && current.day == day) { return current; }
+
+        if (current != null) {
+            try {
+                force(current);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+        if (currentChannel != null) { currentChannel.close(); }
+        Segment segment = segments.computeIfAbsent(day, d -> new Segment(directory, d));
+        currentChannel = FileChannel.open(segment.file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+        boolean empty = currentChannel.size() < HEADER_BYTES;
+        MappedByteBuffer map = currentChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.max(currentChannel.size(), HEADER_BYTES + GROW_BYTES));
+        if (empty) {
+            map.putInt(0, MAGIC);
+            map.putInt(4, RECORD_BYTES);
+            LONGS.setRelease(map, COUNT_OFFSET, 0L);
+        }
+        segment.map = map;
+        current = segment;
+        return segment;
+    }
+
+    // Fa crescere il file mappato se non c'e' spazio per il numero di record indicato
+    private MappedByteBuffer ensureCapacity(Segment segment, long records) throws IOException {
+        MappedByteBuffer map = segment.map;
+        if (Segment.offsetOf(records) <= map.capacity()) { return map; }
+
+        long size = map.capacity() + GROW_BYTES;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Segmento di trade pieno: " + segment.file);
+        }
+        map = currentChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        segment.map = map;
+        return map;
+    }
+
+    /**
+     * Legge i trade con timestamp compreso tra from e to (inclusi), in ordine di giorno e di esecuzione.
+     * Vengono letti solo i segmenti dei giorni dell'intervallo, direttamente dalla mappatura
+     * e a partire dal blocco indicato dall'indice sparso.
+     *
+     * @param from Inizio dell'intervallo, in secondi.
+     * @param to Fine dell'intervallo, in secondi.
+     * @param handler Gestore dei trade (onTrade).
+     * @throws IOException Se un segmento non puo' essere mappato.
+     */
+    public void scan(int from, int to, OrderJournal.Handler handler) throws IOException {
+        int lastDay = Math.floorDiv(to, SECONDS_PER_DAY);
+        for (int day = Math.floorDiv(from, SECONDS_PER_DAY); day <= lastDay; day++) {
+            TradeArchive archive = archives.get(day);
+            if (archive != null) {
+                archive.scan(from, to, (tradeId, timestamp, price, size, maker, taker, side, type) ->
+                        handler.onTrade(maker, taker, side, type, price, size, timestamp));
+            }
+            Segment segment = segments.get(day);
+            if (segment != null) { scanSegment(segment, from, to, handler); }
+        }
+    }
+
+    /**
+     * Calcola i dati di un solo giorno limitati all'intervallo, leggendone l'archivio o il segmento.
+     * Giorni diversi possono essere calcolati in parallelo.
+     *
+     * @param day Giorno dall'epoch.
+     * @param from Inizio dell'intervallo, in secondi.
+     * @param to Fine dell'intervallo, in secondi.
+     * @return I dati del giorno, vuoti se non ci sono trade.
+     * @throws IOException Se il segmento o l'archivio non puo' essere letto.
+     */
+    public OrderBook.DayPriceData aggregateDay(int day, int from, int to) throws IOException {
+        OrderBook.DayPriceData data = new OrderBook.DayPriceData();
+        TradeArchive archive = archives.get(day);
+        if (archive != null) { archive.aggregate(from, to, data); }
+        Segment segment = segments.get(day);
+        if (segment != null) {
+            scanSegment(segment, from, to, new OrderJournal.Handler() {
+                @Override
+                public void onTrade(int makerOrderId, int takerOrderId, OrderBook.Side takerSide, OrderBook.OrderType takerOrderType,
+                        int price, int size, int timestamp) {
+                    data.update(price, size);
+                }
+            });
+        }
+        return data;
+    }
+
+    /**
+     * Archivia i segmenti dei giorni precedenti a beforeDay, esclusi quello in scrittura.
+     * Chiamato dal TradeCompactor: i giorni chiusi non ricevono piu' trade, per cui il segmento non cambia durante la copia.
+     *
+     * @param beforeDay Primo giorno (dall'epoch) da non archiviare.
+     * @return Numero di segmenti archiviati.
+     * @throws IOException Se la scrittura di un archivio fallisce.
+     */
+    public int compact(int beforeDay) throws IOException {
+        int compacted = 0;
+        for (Segment segment : segments.values()) {
+            if (segment.day >= beforeDay || segment == current) { continue; }
+
+            TradeArchive previous = archives.get(segment.day);
+            File file = new File(directory, LocalDate.ofEpochDay(segment.day).format(DAY_FORMAT) + ".tcol");
+            TradeArchive archive = TradeArchive.write(reader -> {
+                try {
+                    if (previous != null) { previous.scan(Integer.MIN_VALUE, Integer.MAX_VALUE, reader); }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                readSegment(segment, reader);
+            }, file);
+
+            // L'archivio e' visibile prima che il segmento sparisca, per cui una lettura concorrente trova sempre uno dei due
+            archives.put(segment.day, archive);
+            segments.remove(segment.day);
+            Files.deleteIfExists(segment.file.toPath());
+            compacted++;
+        }
+        return compacted;
+    }
+
+    // Legge tutti i record pubblicati di un segmento
+    private static void readSegment(Segment segment, TradeArchive.Reader reader) {
+        long records = segment.records;
+        MappedByteBuffer map = segment.map;
+        for (long record = 0; record < records; record++) {
+            int offset = (int) Segment.offsetOf(record);
+            reader.onTrade(map.getLong(offset + TRADE_ID), map.getInt(offset + TIMESTAMP), map.getInt(offset + PRICE),
+                    map.getInt(offset + SIZE), map.getInt(offset + MAKER_ID), map.getInt(offset + TAKER_ID),
+                    OrderBook.Side.fromCode(map.get(offset + SIDE)), OrderBook.OrderType.fromCode(map.get(offset + ORDER_TYPE)));
+        }
+    }
+
+    private static void scanSegment(Segment segment, int from, int to, OrderJournal.Handler handler) throws IOException {
+        // Prima il numero di record, poi la mappatura: una mappatura letta dopo copre sempre i record contati
+        long records = segment.records;
+        MappedByteBuffer map = segment.map;
+        if (records == 0) { return; }
+
+        for (long record = segment.seek(map, records, from); record < records; record++) {
+            int offset = (int) Segment.offsetOf(record);
+            int timestamp = map.getInt(offset + TIMESTAMP);
+            if (timestamp > to) { return; }
+            if (timestamp >= from) {
+                handler.onTrade(map.getInt(offset + MAKER_ID), map.getInt(offset + TAKER_ID),
+                        OrderBook.Side.fromCode(map.get(offset + SIDE)), OrderBook.OrderType.fromCode(map.get(offset + ORDER_TYPE)),
+                        map.getInt(offset + PRICE), map.getInt(offset + SIZE), timestamp);
+            }
+        }
+    }
+}
@@ -1,19 +1,23 @@
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.lang.reflect.Type;
+import java.net.InetAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
-import com.google.gson.reflect.TypeToken;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
 
 /**
  * Classe per la gestione degli utenti nel sistema CROSS.
@@ -25,6 +29,9 @@ public class UserManager {
     private static final String NAME_FILE_USERS = "usersServer.json";
 	static File file = new File(PATH_FILE, NAME_FILE_USERS);
 
+    // Notifiche differite per gli utenti offline, una casella append-only per utente
+    private static final NotificationMailbox mailbox = new NotificationMailbox(new File(PATH_FILE, "mailbox"));
+
 
     /**
      * Classe interna che rappresenta un utente.
@@ -35,21 +42,12 @@ public class UserManager {
         private String password;
         private String ipAddress;
         private boolean login = false;
-        private List<OrderBook.Order> notifyList;
+        // Indirizzo della sessione corrente, risolto una volta al login e usato per le notifiche UDP (non salvato su file)
+        private transient InetAddress address;
 
         public User(String user, String pass) {
             this.username = user;
             this.password = pass;
-        	this.notifyList = new ArrayList<>();
-
-        }
-        
-        // Sceglie quello desiderato dalla firma
-        public User(String user, String pass, String ip, List<OrderBook.Order> list) {
-        	this.username = user;
-        	this.password = pass;
-        	this.ipAddress = ip;
-        	this.notifyList = list;
         }
         
 
@@ -59,39 +57,110 @@ public class UserManager {
         public boolean isLogin() { return login; }
         public void setPassword(String new_password) { this.password = new_password;}
         public void setIp(String string) { this.ipAddress = string; }
+        public InetAddress getAddress() { return address; }
+        public void setAddress(InetAddress address) { this.address = address; }
         public void login() { this.login = true; }
         public void logout() { this.login = false; }
-        public void addNotify(OrderBook.Order o) { this.notifyList.add(o); }
-        public void clearNotifyList() { this.notifyList.clear(); }
-        public List<OrderBook.Order> getNotifyList() { return this.notifyList; }
+
+        // L'username identifica l'utente e non cambia, per cui e' l'unico campo usato come chiave
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) { return true; }
+            if (!(o instanceof User)) { return false; }
+            return username.equals(((User) o).username);
+        }
+
+        @Override
+        public int hashCode() { return username.hashCode(); }
+    }
+
+    /**
+     * Stato di un utente registrato: l'utente, la sessione delle notifiche UDP (creata al primo login)
+     * e gli orderId dei suoi ordini attivi su tutti gli strumenti.
+     * Gli ordini attivi sono aggiornati solo dai thread di matching, attraverso l'osservatore restituito da openOrderTracker,
+     * quando un ordine entra nel book, viene eseguito del tutto, cancellato o attivato (stop order).
+     */
+    public static class UserState {
+
+        private final User user;
+        private volatile NotificationSession session;
+        private final OrderIdSet openOrders = new OrderIdSet();
+
+        public UserState(User user) {
+            this.user = user;
+        }
+
+        public User getUser() { return user; }
+        public NotificationSession getSession() { return session; }
+        public boolean hasOpenOrder(int orderId) { return openOrders.contains(orderId); }
+        public int getOpenOrderCount() { return openOrders.size(); }
+
+        // Apre una nuova sessione di notifica, riusando il buffer di ritrasmissione delle sessioni precedenti
+        public synchronized NotificationSession openSession(int window) {
+            if (session == null) { session = new NotificationSession(window); } else { session.reset(); }
+            return session;
+        }
     }
     
+    /**
+     * Osservatore da collegare agli order book: mantiene gli ordini attivi nello stato di ogni utente.
+     * Chiamato dai thread di matching, non alloca: gli ordini di utenti sconosciuti vengono ignorati.
+     *
+     * @param uDB Struttura dati degli utenti.
+     * @return L'osservatore degli ordini attivi.
+     */
+    public static OrderBook.OpenOrderListener openOrderTracker(ConcurrentHashMap<String, UserState> uDB) {
+    	return new OrderBook.OpenOrderListener() {
+    		@Override
+    		public void onOpen(String owner, int orderId) {
+    			UserState state = uDB.get(owner);
+    			if (state != null) { state.openOrders.add(orderId); }
+    		}
+
+    		@Override
+    		public void onClose(String owner, int orderId) {
+    			UserState state = uDB.get(owner);
+    			if (state != null) { state.openOrders.remove(orderId); }
+    		}
+    	};
+    }
+
     /**
      * Inizializza la cronologia degli utenti caricandoli dal file di persistenza.
+     * Le notifiche salvate nel file dalle versioni precedenti (campo notifyList) vengono spostate nelle caselle
+     * degli utenti e il file viene riscritto senza, per cui la migrazione avviene una sola volta.
      * 
      * @param uDB Struttura dati per memorizzare gli utenti.
      * @return Il file di persistenza degli utenti.
      */
-    public static File setUpUserHistory(ConcurrentHashMap<UserManager.User, List<OrderBook.Order>> uDB) {
+    public static File setUpUserHistory(ConcurrentHashMap<String, UserState> uDB) {
     	// Se il file non esiste allora creo il file, se invece esiste cambia tutto,
     	// faccio un while (finche ho roba da leggere) registro gli utenti 
     	if (!file.exists()) {
     		file = utilities.createFile(PATH_FILE, NAME_FILE_USERS);
        	} else {
        		Gson gson = new Gson();
-       		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                Type userList = new TypeToken<List<User>>() {}.getType();
-                List<User> users = gson.fromJson(reader, userList);
+       		List<User> users = new ArrayList<>();
+       		boolean migrated = false;
+       		try {
+       			JsonArray stored;
+       			try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+       				stored = gson.fromJson(reader, JsonArray.class);
+       			}
                 
-       			for (User user : users) {
+       			for (JsonElement element : stored == null ? new JsonArray() : stored) {
+       				User user = gson.fromJson(element, User.class);
+       				users.add(user);
        				register(
        						user.getUsername(),
        						user.getPassword(),
        						user.getIpAddress(),
        						uDB,
-       						user.getNotifyList(),
        						false);
+       				migrated |= migrateNotifyList(user.getUsername(), element.getAsJsonObject().get("notifyList"));
        			}
+
+       			if (migrated) { saveUsers(users); }
        		} catch (IOException e) {
        			e.printStackTrace();
        		}       		
@@ -99,23 +168,87 @@ public class UserManager {
     	
     	return file;
     }
+
+    /**
+     * Aggiunge alla casella dell'utente le notifiche di una vecchia notifyList, nel formato di quelle UDP.
+     * Gli elementi possono essere ordini eseguiti (gia' nel formato della notifica) o trade, per i quali
+     * la notifica e' quella del lato dell'utente. Gli elementi malformati vengono segnalati e scartati.
+     *
+     * @param username Destinatario.
+     * @param notifyList Lista letta dal file, oppure null.
+     * @return true se la lista conteneva notifiche.
+     * @throws IOException Se la scrittura nella casella fallisce.
+     */
+    private static boolean migrateNotifyList(String username, JsonElement notifyList) throws IOException {
+    	if (notifyList == null || !notifyList.isJsonArray() || notifyList.getAsJsonArray().isEmpty()) { return false; }
+
+    	ByteBuffer payload = ByteBuffer.allocate(OrderBook.Trade.NOTIFY_BYTES);
+    	int moved = 0;
+    	for (JsonElement element : notifyList.getAsJsonArray()) {
+    		try {
+    			JsonObject entry = element.getAsJsonObject();
+    			long orderId;
+    			String type;
+    			String orderType;
+    			if (entry.has("makerOrderId")) {
+    				boolean maker = username.equals(stringOf(entry, "makerOwner", null));
+    				String makerType = stringOf(entry, "makerType", OrderBook.Side.ASK.getLabel());
+    				String opposite = OrderBook.Side.ASK.getLabel().equals(makerType) ? OrderBook.Side.BID.getLabel() : OrderBook.Side.ASK.getLabel();
+    				orderId = entry.get(maker ? "makerOrderId" : "takerOrderId").getAsLong();
+    				type = maker ? makerType : stringOf(entry, "takerType", opposite);
+    				orderType = maker ? OrderBook.OrderType.LIMIT.getLabel() : stringOf(entry, "takerOrderType", OrderBook.OrderType.LIMIT.getLabel());
+    			} else {
+    				orderId = entry.get("orderId").getAsLong();
+    				type = stringOf(entry, "type", "");
+    				orderType = stringOf(entry, "orderType", "");
+    			}
+
+    			payload.clear();
+    			payload.put((byte) '{');
+    			CompactJson.putField(payload, "orderId", orderId, true);
+    			CompactJson.putField(payload, "type", type, false);
+    			CompactJson.putField(payload, "orderType", orderType, false);
+    			CompactJson.putField(payload, "size", entry.get("size").getAsLong(), false);
+    			CompactJson.putField(payload, "price", entry.get("price").getAsLong(), false);
+    			CompactJson.putField(payload, "timestamp", entry.get("timestamp").getAsLong(), false);
+    			payload.put((byte) '}');
+        		payload.flip();
+    		} catch (RuntimeException e) {
+    			// Elemento malformato (campi mancanti o di tipo diverso): viene scartato senza bloccare l'avvio del server
+    			System.err.println("Notifica di " + username + " scartata durante la migrazione: " + element + " (" + e + ")");
+    			continue;
+    		}
+    		mailbox.append(username, payload);
+    		moved++;
+    	}
+    	System.out.println("Notifiche di " + username + " spostate nella casella (" + moved + " di " + notifyList.getAsJsonArray().size() + ")");
+    	return true;
+    }
+
+    private static String stringOf(JsonObject entry, String name, String fallback) {
+    	return entry.has(name) && !entry.get(name).isJsonNull() ? entry.get(name).getAsString() : fallback;
+    }
+
+    // Riscrive il file degli utenti sostituendolo con uno spostamento atomico
+    private static void saveUsers(List<User> users) throws IOException {
+    	File tmp = new File(file.getPath() + ".tmp");
+    	try (FileWriter writer = new FileWriter(tmp)) {
+    		new GsonBuilder().setPrettyPrinting().create().toJson(users, writer);
+    	}
+    	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
     
     /**
-     * Cerca un utente nella struttura dati basandosi sul nome utente.
+     * Cerca un utente nella struttura dati basandosi sul nome utente, con un solo accesso all'indice.
      * 
      * @param username Nome utente da cercare.
-     * @param uDB Struttura dati degli utenti.
+     * @param uDB Struttura dati degli utenti, indicizzata per username.
      * @return L'oggetto User corrispondente, o null se non trovato.
      */
-    public static User findUserByUsername(String username, ConcurrentHashMap<User, List<OrderBook.Order>> uDB) {
-        // Cerca l'utente nella mappa
-        for (User user : uDB.keySet()) {
-            if (user.getUsername().equals(username)) {
-                return user;
-            }
-        }
+    public static User findUserByUsername(String username, ConcurrentHashMap<String, UserState> uDB) {
+        UserState state = username == null ? null : uDB.get(username);
         // Restituisce null se l'utente non viene trovato
-        return null;
+        return state == null ? null : state.getUser();
     }
     
     /**
@@ -128,7 +261,7 @@ public class UserManager {
      * @param out Output per inviare messaggi al client.
      * @return Oggetto mainServer.Response con il risultato del login.
      */
-    public static mainServer.Response login(String username, String password, ConcurrentHashMap<User, List<OrderBook.Order>> uDB, Socket clientSocket, PrintWriter out) {
+    public static mainServer.Response login(String username, String password, ConcurrentHashMap<String, UserState> uDB, Socket clientSocket, PrintWriter out) {
     	mainServer.Response risp = new mainServer.Response();
       	try {
     		User user = findUserByUsername(username, uDB);
@@ -139,12 +272,13 @@ public class UserManager {
                 risp.setResponseErrormsg(102, "user already logged in");
             } else {
 	            user.setIp(clientSocket.getInetAddress().getHostAddress());
-	            user.login();
-	            if (!user.notifyList.isEmpty()) {
-                    Gson gson = new GsonBuilder().create();
-                    out.println(gson.toJson(user.getNotifyList()));
-                    out.flush();
-                    user.clearNotifyList();
+	            user.setAddress(clientSocket.getInetAddress());
+	            // Con il lock dell'utente nessuna notifica puo' finire nella casella dopo il distacco:
+	            // da qui in avanti l'utente e' online e riceve le notifiche via UDP
+	            synchronized (user) {
+	            	if (mainServer.dispatcher != null) { mainServer.dispatcher.openSession(uDB.get(username)); }
+	            	user.login();
+	            	if (mailbox.detach(username)) { risp.setNotifications(true); }
 	            }
 	            risp.setResponseErrormsg(100, "OK");
             }
@@ -162,26 +296,19 @@ public class UserManager {
      * @param password Password dell'utente.
      * @param ip Indirizzo IP del client.
      * @param uDB Struttura dati degli utenti.
-     * @param list Lista di notifiche (opzionale).
      * @param scrivi Indica se salvare i dati su file.
      * @return Oggetto mainServer.Response con il risultato della registrazione.
      */
-    public static mainServer.Response register(String username, String password, String ip, ConcurrentHashMap<User, List<OrderBook.Order>> uDB, List<OrderBook.Order> list ,boolean scrivi) {
+    public static mainServer.Response register(String username, String password, String ip, ConcurrentHashMap<String, UserState> uDB, boolean scrivi) {
         mainServer.Response risp = new mainServer.Response();
     	try {
             if (password.isEmpty()) {
                 risp.setResponseErrormsg(101, "invalid password");
             }
 
-            if (findUserByUsername(username, uDB) == null) {
-            	User newUser;
-              	if (scrivi) { 
-              			// Aggiunge l'utente nel database dal file, il quale potrebbe non avere una lista
-            			newUser = new User(username, password, ip, list != null ? list : new ArrayList<>());
-            	} else {
-   	            		newUser = new User(username, password);
-            	}
-				uDB.put(newUser, new ArrayList<>());
+            User newUser = new User(username, password);
+            // L'inserimento e' atomico: due registrazioni concorrenti dello stesso username non possono riuscire entrambe
+            if (uDB.putIfAbsent(username, new UserState(newUser)) == null) {
             	risp.setResponseErrormsg(100, "OK");
             	newUser.setIp(ip);
 
@@ -200,31 +327,38 @@ public class UserManager {
     	return risp;
     }
     
-    public static void writeNotify(String username, OrderBook.Order order) {
-    	// REQUIRES: il file esiste in formato JSON con l'oggetto utente corrispondente all'username, l'username e' offline
-    	// EFFECTS: il file Json viene aggiornato con un add sulla lista corrispondente alle notifiche
-   		Gson gson = new Gson();
-   		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-            Type userList = new TypeToken<List<User>>() {}.getType();
-            List<User> users = gson.fromJson(reader, userList);
-            
-   			for (User user : users) {
-   				if (user.getUsername().equals(username)) {
-   					user.getNotifyList().add(order);
-   					break;
-   				}
-   			}
-   			
-   	        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
-   	            gson.toJson(users, userList, writer);
-   	        }	
-   		} catch (IOException e) {
-   			e.printStackTrace();
-   		}  
-    	
+    /**
+     * Salva la notifica di un trade nella casella di un utente offline, con una sola scrittura in fondo al file.
+     * 
+     * @param user Destinatario.
+     * @param payload Notifica gia' codificata (gli stessi byte inviati via UDP), la posizione non viene modificata.
+     * @return false se nel frattempo l'utente ha effettuato il login e la notifica va inviata via UDP.
+     * @throws IOException Se la scrittura nella casella fallisce.
+     */
+    public static boolean writeNotify(User user, ByteBuffer payload) throws IOException {
+    	synchronized (user) {
+    		if (user.isLogin()) { return false; }
+    		mailbox.append(user.getUsername(), payload.duplicate());
+    		return true;
+    	}
+    }
+
+    /**
+     * Invia al client le notifiche ricevute mentre era offline, in pagine, dopo la risposta al login.
+     * 
+     * @param user Utente appena autenticato.
+     * @param out Output della connessione del client.
+     */
+    public static void drainNotify(User user, PrintWriter out) {
+    	try {
+    		int sent = mailbox.drain(user.getUsername(), out);
+    		System.out.println("Notifiche differite inviate a: " + user.getUsername() + " (" + sent + ")");
+    	} catch (IOException e) {
+    		System.err.println("Errore nell'invio delle notifiche differite a " + user.getUsername() + ": " + e.getMessage());
+    	}
     }
 
-    public static mainServer.Response updateCredentials(String username, String currentPassword, String newPassword, ConcurrentHashMap<User, List<OrderBook.Order>> uDB) {
+    public static mainServer.Response updateCredentials(String username, String currentPassword, String newPassword, ConcurrentHashMap<String, UserState> uDB) {
         mainServer.Response risp = new mainServer.Response();
     	User user = findUserByUsername(username, uDB);
         if (user == null || !user.getPassword().equals(currentPassword)) {
@@ -245,7 +379,7 @@ public class UserManager {
         
     }
 
-    public static mainServer.Response logout(String username, ConcurrentHashMap<User, List<OrderBook.Order>> uDB) {
+    public static mainServer.Response logout(String username, ConcurrentHashMap<String, UserState> uDB) {
     	
     	mainServer.Response risp = new mainServer.Response();
        	User user = findUserByUsername(username, uDB);
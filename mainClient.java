@@ -4,15 +4,33 @@ import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
 import java.net.Socket;
 import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.CRC32;
 
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonSyntaxException;
 
 public class mainClient {
 
@@ -20,6 +38,57 @@ public class mainClient {
     private static volatile boolean isSocketClosed = false;
     private static volatile long lastActivityTime = System.currentTimeMillis();
 
+    // Flusso delle notifiche UDP: sessione corrente, prossimo numero di sequenza atteso
+    // e buchi rilevati dal thread UDP, richiesti al server via TCP dal thread principale ({sessione, da, a})
+    private static long notifySession = 0;
+    private static long notifyNext = 1;
+    private static final ConcurrentLinkedQueue<long[]> notifyGaps = new ConcurrentLinkedQueue<>();
+    // Esito dell'ultimo login/logout: le notifiche perse si richiedono solo con una sessione attiva (thread principale)
+    private static boolean loggedIn = false;
+
+    /**
+     * Book locale di uno strumento, mantenuto con i delta del flusso dei dati di mercato.
+     * Finche' non e' allineato ad un'istantanea (getDepth) i delta ricevuti vengono conservati in pending.
+     */
+    private static final class LocalBook {
+        final TreeMap<Integer, Long> bids = new TreeMap<>(Comparator.reverseOrder());
+        final TreeMap<Integer, Long> asks = new TreeMap<>();
+        final List<long[]> pending = new ArrayList<>(); // {aggiornamento, lato, prezzo, quantita'}
+        long update = 0;
+        int levels = 10;
+        boolean synced = false;
+        boolean requested = false;
+
+        void apply(long side, int price, long size) {
+            TreeMap<Integer, Long> levelsOfSide = side == 0 ? asks : bids;
+            if (size == 0) { levelsOfSide.remove(price); } else { levelsOfSide.put(price, size); }
+        }
+
+        // CRC32 dei primi livelli, calcolato come BookDepth sul server
+        int checksum() {
+            ByteBuffer buffer = ByteBuffer.allocate(2 * levels * 12);
+            int n = 0;
+            for (Map.Entry<Integer, Long> level : bids.entrySet()) {
+                if (n++ == levels) { break; }
+                buffer.putInt(level.getKey()).putLong(level.getValue());
+            }
+            n = 0;
+            for (Map.Entry<Integer, Long> level : asks.entrySet()) {
+                if (n++ == levels) { break; }
+                buffer.putInt(level.getKey()).putLong(level.getValue());
+            }
+            buffer.flip();
+            CRC32 crc = new CRC32();
+            crc.update(buffer);
+            return (int) crc.getValue();
+        }
+    }
+
+    // Book locali per strumento, condivisi dal thread dei dati di mercato e dal thread principale (lock sulla mappa),
+    // e strumenti per cui il thread principale deve richiedere un'istantanea
+    private static final Map<String, LocalBook> localBooks = new HashMap<>();
+    private static final ConcurrentLinkedQueue<String> depthResync = new ConcurrentLinkedQueue<>();
+
     public static void main(String[] args) throws IOException {
        		// Decodifica il percorso
 		String configPath = URLDecoder.decode(
@@ -32,6 +101,10 @@ public class mainClient {
         int serverPort = Integer.parseInt(config.getProperty("client.serverPort"));
         int udpPort = Integer.parseInt(config.getProperty("client.udpPort"));
         int timeout = Integer.parseInt(config.getProperty("client.timeout"));
+        // Flusso multicast dei dati di mercato, ricevuto solo se il gruppo e' configurato
+        String marketDataGroup = config.getProperty("client.marketDataGroup", "");
+        int marketDataPort = Integer.parseInt(config.getProperty("client.marketDataPort", "12347"));
+        String marketDataInterface = config.getProperty("client.marketDataInterface", "");
         
         // Connessione al server
     	try (
@@ -48,14 +121,29 @@ public class mainClient {
             Thread udpListenerThread = new Thread(() -> listenForNotifications(udpPort));
             udpListenerThread.start(); // Avvia il thread
 
+            if (!marketDataGroup.isEmpty()) {
+                // Senza un'interfaccia configurata si usa quella della connessione al server
+                NetworkInterface networkInterface = marketDataInterface.isEmpty()
+                        ? NetworkInterface.getByInetAddress(socket.getLocalAddress())
+                        : NetworkInterface.getByName(marketDataInterface);
+                Thread marketDataThread = new Thread(() -> listenForMarketData(marketDataGroup, marketDataPort, networkInterface));
+                marketDataThread.setDaemon(true);
+                marketDataThread.start();
+            }
+
             Gson gson = new GsonBuilder().create();
             
             // Gestione dei comandi utente
             while (!isSocketClosed) {
+                // Prima di un nuovo comando recupera le notifiche UDP perse
+                recoverNotifications(in, out, gson);
+                // e riallinea i book locali che hanno perso dati di mercato o sono divergenti
+                resyncDepth(in, out, gson);
+
                 // Gestisci l'input dell'utente (comandi)
                 System.out.println("\nScegli un comando:");
                 
-                System.out.println("1. register\n2. login\n3. updateCredentials\n4. logout\n5. insertLimitOrder\n6. insertMarketOrder\n7. insertStopOrder\n8. cancelOrder\n9. getPriceHistory\n");
+                System.out.println("1. register\n2. login\n3. updateCredentials\n4. logout\n5. insertLimitOrder\n6. insertMarketOrder\n7. insertStopOrder\n8. cancelOrder\n9. getPriceHistory\n10. getPriceHistoryRange\n11. getDepth\n");
                 System.out.print("Comando: ");
 
                 String choice = scanner.nextLine();
@@ -123,6 +211,7 @@ public class mainClient {
                         limitData.addProperty("type", limitType);
                         limitData.addProperty("size", limitSize);
                         limitData.addProperty("price", limitPrice);
+                        readSymbol(scanner, limitData);
                         request.add("data", limitData);
                         break;
 
@@ -135,6 +224,7 @@ public class mainClient {
                         JsonObject marketData = new JsonObject();
                         marketData.addProperty("type", marketType);
                         marketData.addProperty("size", marketSize);
+                        readSymbol(scanner, marketData);
                         request.add("data", marketData);
                         break;
 
@@ -150,6 +240,7 @@ public class mainClient {
                         stopData.addProperty("type", stopType);
                         stopData.addProperty("size", stopSize);
                         stopData.addProperty("price", stopPrice);
+                        readSymbol(scanner, stopData);
                         request.add("data", stopData);
                         break;
 
@@ -159,6 +250,7 @@ public class mainClient {
                         int orderId = Integer.parseInt(scanner.nextLine());
                         JsonObject cancelData = new JsonObject();
                         cancelData.addProperty("orderId", orderId);
+                        readSymbol(scanner, cancelData);
                         request.add("data", cancelData);
                         break;
 
@@ -167,10 +259,33 @@ public class mainClient {
                         System.out.print("Mese (formato MMYYYY): ");
                         String month = scanner.nextLine();
                         JsonObject historyData = new JsonObject();
-                        historyData.addProperty("month", month.substring(0, 2));
+                        historyData.addProperty("month", month);
+                        readSymbol(scanner, historyData);
                         request.add("data", historyData);
                         break;
 
+                    case "10": // getPriceHistoryRange
+                        request.addProperty("command", "getPriceHistoryRange");
+                        JsonObject rangeData = new JsonObject();
+                        System.out.print("Dal giorno (formato yyyyMMdd): ");
+                        rangeData.addProperty("from", scanner.nextLine());
+                        System.out.print("Al giorno (formato yyyyMMdd): ");
+                        rangeData.addProperty("to", scanner.nextLine());
+                        System.out.print("Periodo (day, week, month, year): ");
+                        rangeData.addProperty("interval", scanner.nextLine());
+                        readSymbol(scanner, rangeData);
+                        request.add("data", rangeData);
+                        break;
+
+                    case "11": // getDepth
+                        request.addProperty("command", "getDepth");
+                        JsonObject depthData = new JsonObject();
+                        System.out.print("Livelli per lato: ");
+                        depthData.addProperty("levels", Integer.parseInt(scanner.nextLine().trim()));
+                        readSymbol(scanner, depthData);
+                        request.add("data", depthData);
+                        break;
+
                     default:
                         System.out.println("Comando non valido.");
                         continue;
@@ -190,6 +305,20 @@ public class mainClient {
                     break;
                 } else {
                     System.out.println("Risposta ricevuta dal server: " + response);
+                    // Un login o logout accettato apre o chiude la sessione delle notifiche
+                    String command = request.get("command").getAsString();
+                    JsonObject responseJson = "login".equals(command) || "logout".equals(command)
+                            ? parseObject(gson, response) : null;
+                    boolean accepted = responseJson != null && responseJson.has("response") && responseJson.get("response").getAsInt() == 100;
+                    if (accepted) { loggedIn = "login".equals(command); }
+                    // Dopo il login il server invia le notifiche ricevute da offline, in pagine fino a quella con more = false
+                    if (accepted && loggedIn && responseJson.has("notifications") && responseJson.get("notifications").getAsBoolean()) {
+                        String page;
+                        while ((page = in.readLine()) != null) {
+                            System.out.println("Notifiche ricevute mentre eri offline: " + page);
+                            if (!gson.fromJson(page, JsonObject.class).get("more").getAsBoolean()) { break; }
+                        }
+                    }
                 }
             }
             
@@ -201,6 +330,174 @@ public class mainClient {
             System.err.println("Errore durante la connessione al server: " + e.getMessage());
         }
     }
+    /**
+     * Chiede lo strumento su cui operare e lo aggiunge ai dati del comando.
+     * Se l'utente non lo specifica il campo viene omesso e il server usa lo strumento di default.
+     */
+    private static void readSymbol(Scanner scanner, JsonObject data) {
+        System.out.print("Strumento (invio per quello di default): ");
+        String symbol = scanner.nextLine().trim();
+        if (!symbol.isEmpty()) {
+            data.addProperty("symbol", symbol);
+        }
+    }
+
+    /**
+     * Aggiorna il numero di sequenza atteso con un datagramma di notifiche e registra l'eventuale buco.
+     *
+     * @return false se le notifiche sono gia' state ricevute (duplicato o ritrasmissione).
+     */
+    private static synchronized boolean trackNotifications(long session, long seq, int count) {
+        // Un login apre una nuova sessione, numerata da 1
+        if (session != notifySession) {
+            notifySession = session;
+            notifyNext = 1;
+            notifyGaps.clear();
+        }
+        if (seq + count <= notifyNext) { return false; }
+        if (seq > notifyNext) { notifyGaps.add(new long[] { session, notifyNext, seq - 1 }); }
+        notifyNext = Math.max(notifyNext, seq + count);
+        return true;
+    }
+
+    /**
+     * Richiede via TCP le notifiche dei buchi rilevati nel flusso UDP della sessione corrente.
+     */
+    private static void recoverNotifications(BufferedReader in, PrintWriter out, Gson gson) throws IOException {
+        // Senza login il server risponde con un messaggio di testo: i buchi della sessione chiusa non sono piu' recuperabili
+        if (!loggedIn) {
+            notifyGaps.clear();
+            return;
+        }
+        long[] gap;
+        while ((gap = notifyGaps.poll()) != null) {
+            synchronized (mainClient.class) {
+                if (gap[0] != notifySession) { continue; }
+            }
+            JsonObject request = new JsonObject();
+            JsonObject data = new JsonObject();
+            request.addProperty("command", "getNotifications");
+            data.addProperty("from", gap[1]);
+            data.addProperty("to", gap[2]);
+            request.add("data", data);
+            out.println(gson.toJson(request));
+            out.flush();
+
+            String response = in.readLine();
+            if (response == null) { return; }
+            JsonObject replay = parseObject(gson, response);
+            if (replay == null || !replay.has("session")) {
+                System.out.println("Notifiche " + gap[1] + "-" + gap[2] + " non recuperate: " + response);
+                continue;
+            }
+            if (replay.get("session").getAsLong() != gap[0]) { continue; }
+            long first = replay.get("seq").getAsLong();
+            if (first > gap[1]) {
+                System.out.println("Notifiche " + gap[1] + "-" + Math.min(first - 1, gap[2]) + " non piu' disponibili sul server");
+            }
+            printNotifications(first, replay.getAsJsonArray("trades"));
+        }
+    }
+
+    // Interpreta una risposta del server come oggetto JSON, null se e' un messaggio di testo (ad esempio "E' necessario il login!")
+    private static JsonObject parseObject(Gson gson, String response) {
+        if (!response.startsWith("{")) { return null; }
+        try {
+            return gson.fromJson(response, JsonObject.class);
+        } catch (JsonSyntaxException e) {
+            return null;
+        }
+    }
+
+    // Segna il book locale come da riallineare; va chiamato con il lock di localBooks
+    private static void requestResync(String symbol, LocalBook book) {
+        book.synced = false;
+        if (!book.requested) {
+            book.requested = true;
+            depthResync.add(symbol);
+        }
+    }
+
+    /**
+     * Riallinea i book locali con un'istantanea richiesta via TCP, poi applica i delta successivi ricevuti nel frattempo.
+     */
+    private static void resyncDepth(BufferedReader in, PrintWriter out, Gson gson) throws IOException {
+        String symbol;
+        while ((symbol = depthResync.poll()) != null) {
+            int levels;
+            synchronized (localBooks) { levels = localBooks.get(symbol).levels; }
+            JsonObject request = new JsonObject();
+            JsonObject data = new JsonObject();
+            request.addProperty("command", "getDepth");
+            data.addProperty("symbol", symbol);
+            data.addProperty("levels", levels);
+            request.add("data", data);
+            out.println(gson.toJson(request));
+            out.flush();
+
+            String response = in.readLine();
+            if (response == null) { return; }
+            JsonObject depth = gson.fromJson(response, JsonObject.class);
+            synchronized (localBooks) {
+                LocalBook book = localBooks.get(symbol);
+                book.bids.clear();
+                book.asks.clear();
+                for (JsonElement level : depth.getAsJsonArray("bids")) {
+                    book.bids.put(level.getAsJsonArray().get(0).getAsInt(), level.getAsJsonArray().get(1).getAsLong());
+                }
+                for (JsonElement level : depth.getAsJsonArray("asks")) {
+                    book.asks.put(level.getAsJsonArray().get(0).getAsInt(), level.getAsJsonArray().get(1).getAsLong());
+                }
+                book.update = depth.get("update").getAsLong();
+                // I delta gia' compresi nell'istantanea vengono scartati
+                for (long[] delta : book.pending) {
+                    if (delta[0] > book.update) { book.apply(delta[1], (int) delta[2], delta[3]); }
+                    book.update = Math.max(book.update, delta[0]);
+                }
+                book.pending.clear();
+                book.synced = true;
+                book.requested = false;
+                System.out.println("Book locale di " + symbol + " allineato all'aggiornamento " + book.update);
+            }
+        }
+    }
+
+    // Applica un delta del flusso al book locale dello strumento e all'ultimo delta dell'aggiornamento verifica il checksum
+    private static void onDepthDelta(String symbol, long update, byte side, int price, long size, boolean last, int levels, int checksum) {
+        synchronized (localBooks) {
+            LocalBook book = localBooks.computeIfAbsent(symbol, s -> new LocalBook());
+            book.levels = levels;
+            if (!book.synced) {
+                // Oltre un certo numero di delta in attesa si ripartira' dall'istantanea e dal checksum successivo
+                if (book.pending.size() < 100_000) { book.pending.add(new long[] { update, side, price, size }); }
+                requestResync(symbol, book);
+                return;
+            }
+            if (update <= book.update) { return; }
+            // Un aggiornamento saltato rende il book locale inaffidabile
+            if (update > book.update + 1) {
+                System.out.println("Aggiornamenti del book " + symbol + " persi, riallineamento");
+                book.pending.add(new long[] { update, side, price, size });
+                requestResync(symbol, book);
+                return;
+            }
+            book.apply(side, price, size);
+            if (last) {
+                book.update = update;
+                if (book.checksum() != checksum) {
+                    System.out.println("Book locale di " + symbol + " divergente, riallineamento");
+                    requestResync(symbol, book);
+                }
+            }
+        }
+    }
+
+    private static void printNotifications(long seq, JsonArray trades) {
+        for (int i = 0; i < trades.size(); i++) {
+            System.out.println("Notifica ricevuta #" + (seq + i) + ": " + trades.get(i));
+        }
+    }
+
     /**
      * Metodo per monitorare lo stato di inattivita' del thread.
      */
@@ -239,7 +536,8 @@ public class mainClient {
      */
     private static void listenForNotifications(int udpPort) {
         try (DatagramSocket udpSocket = new DatagramSocket(udpPort)) {
-            byte[] buffer = new byte[1024];
+            // Massimo payload UDP: un datagramma non viene mai troncato
+            byte[] buffer = new byte[65507];
             Gson gson = new GsonBuilder().create();
 
             System.out.println("In ascolto per notifiche UDP sulla porta " + udpPort);
@@ -248,9 +546,13 @@ public class mainClient {
                 DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
                 udpSocket.receive(packet);
 
-                String message = new String(packet.getData(), 0, packet.getLength());
+                String message = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
                 JsonObject notification = gson.fromJson(message, JsonObject.class);
-                System.out.println("Notifica ricevuta: " + notification.toString());
+                JsonArray trades = notification.getAsJsonArray("trades");
+                long seq = notification.get("seq").getAsLong();
+                if (trackNotifications(notification.get("session").getAsLong(), seq, trades.size())) {
+                    printNotifications(seq, trades);
+                }
             }
         } catch (IOException e) {
             if (!Thread.currentThread().isInterrupted()) {
@@ -258,4 +560,68 @@ public class mainClient {
             }
         }
     }
+
+    /**
+     * Riceve il flusso multicast dei dati di mercato (trade e top of book) e lo stampa,
+     * segnalando i datagrammi persi dai buchi nella sequenza. Il formato e' descritto in MarketDataPublisher.
+     *
+     * @param group Indirizzo del gruppo multicast.
+     * @param port Porta del flusso.
+     * @param networkInterface Interfaccia su cui iscriversi al gruppo.
+     */
+    private static void listenForMarketData(String group, int port, NetworkInterface networkInterface) {
+        try (DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET)) {
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            channel.bind(new InetSocketAddress(port));
+            channel.join(InetAddress.getByName(group), networkInterface);
+            System.out.println("In ascolto dei dati di mercato su " + group + ":" + port);
+
+            ByteBuffer buffer = ByteBuffer.allocate(65507);
+            long expected = 0;
+            while (!Thread.currentThread().isInterrupted()) {
+                buffer.clear();
+                channel.receive(buffer);
+                buffer.flip();
+                long seq = buffer.getLong();
+                int count = buffer.getShort();
+                if (expected != 0 && seq > expected) {
+                    System.out.println("Dati di mercato persi: " + expected + "-" + (seq - 1));
+                    synchronized (localBooks) {
+                        for (Map.Entry<String, LocalBook> entry : localBooks.entrySet()) { requestResync(entry.getKey(), entry.getValue()); }
+                    }
+                }
+                expected = seq + count;
+
+                for (int i = 0; i < count; i++) {
+                    byte type = buffer.get();
+                    byte[] symbol = new byte[buffer.get() & 0xff];
+                    buffer.get(symbol);
+                    String name = new String(symbol, StandardCharsets.US_ASCII);
+                    int timestamp = buffer.getInt();
+                    if (type == 'T') {
+                        int price = buffer.getInt();
+                        int size = buffer.getInt();
+                        String side = buffer.get() == 0 ? "ask" : "bid";
+                        System.out.println("Trade " + name + ": " + size + " @ " + price + " (" + side + ", " + timestamp + ")");
+                    } else if (type == 'D') {
+                        long update = buffer.getLong();
+                        byte side = buffer.get();
+                        int price = buffer.getInt();
+                        long size = buffer.getLong();
+                        boolean last = buffer.get() == 1;
+                        int levels = buffer.get() & 0xff;
+                        onDepthDelta(name, update, side, price, size, last, levels, buffer.getInt());
+                    } else {
+                        int bid = buffer.getInt();
+                        long bidSize = buffer.getLong();
+                        int ask = buffer.getInt();
+                        long askSize = buffer.getLong();
+                        System.out.println("Top of book " + name + ": bid " + bidSize + " @ " + bid + ", ask " + askSize + " @ " + ask);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Errore nella ricezione dei dati di mercato: " + e.getMessage());
+        }
+    }
 }
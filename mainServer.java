@@ -2,19 +2,10 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
 import java.util.Map;
-import java.util.Set;
 /*
 ################################################################################
 
@@ -35,16 +26,25 @@ import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 import java.net.URLDecoder;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.nio.charset.StandardCharsets;
 import java.util.Properties;
 
 public class mainServer {
 	
-    // Struttura dati thread-safe per gestire gli utenti e i relativi ordini
-    public static ConcurrentHashMap<UserManager.User, List<OrderBook.Order >> userDatabase = new ConcurrentHashMap<>();
+    // Indice thread-safe username -> stato dell'utente (utente, sessione delle notifiche e orderId dei suoi ordini attivi)
+    public static ConcurrentHashMap<String, UserManager.UserState> userDatabase = new ConcurrentHashMap<>();
     
-    // Oggetto per gestire gli ordini
-    static OrderBook orderbook = new OrderBook();
+    // Motori di matching, ognuno proprietario degli order book degli strumenti assegnati al proprio shard
+    static EngineRouter engine;
+
+    // Thread che invia le notifiche delle esecuzioni, alimentato dai thread dei client
+    static NotificationDispatcher dispatcher;
+
+    // Numero massimo di giorni di un'interrogazione getPriceHistoryRange (history.maxRangeDays)
+    static int historyMaxDays;
 
     public static void main(String[] args) throws IOException {
         
@@ -60,12 +60,22 @@ public class mainServer {
     	int port = Integer.parseInt(config.getProperty("server.port"));
         int maxConnections = Integer.parseInt(config.getProperty("server.maxConnections"));
         int udpPort = Integer.parseInt(config.getProperty("server.udpPort"));
+        historyMaxDays = Integer.parseInt(config.getProperty("history.maxRangeDays", "3660"));
         // Creazione di un thread pool con un numero fisso di thread
         ExecutorService threadPool = Executors.newFixedThreadPool(maxConnections);
         
         // Setup dei dati persistenti
         UserManager.setUpUserHistory(userDatabase);
-        OrderBook.setUpOrderHistory();
+
+        // Avvio del thread delle notifiche
+        dispatcher = new NotificationDispatcher(userDatabase, udpPort,
+        		Integer.parseInt(config.getProperty("notify.queueSize", "4096")),
+        		Integer.parseInt(config.getProperty("notify.retransmitWindow", "256")));
+        dispatcher.start();
+
+        // Creazione degli order book per strumento e avvio dei thread di matching
+        engine = new EngineRouter(config, UserManager.openOrderTracker(userDatabase));
+        engine.start();
 
         // Creazione del server socket
         try (ServerSocket serverSocket = new ServerSocket(port)) {
@@ -77,7 +87,7 @@ public class mainServer {
                 System.out.println("Connessione accettata da: " + clientSocket.getInetAddress());
 
                 // Invia la connessione al thread pool per gestirla
-                threadPool.execute(new ClientHandler(clientSocket, udpPort));
+                threadPool.execute(new ClientHandler(clientSocket));
             }
         } catch (IOException e) {
             System.err.println("Errore nel server: " + e.getMessage());
@@ -93,13 +103,15 @@ public class mainServer {
     static class ClientHandler implements Runnable {
 
     	private final Socket clientSocket;
-    	private final int udpPort;
-    	private UserManager.User user = new UserManager.User("", "");
     	//private final int timeout;
 
-        public ClientHandler(Socket clientSocket, int udpPort) {
+        // Report riutilizzato da tutti i comandi della connessione, riscritto dal MatchingEngine ad ogni richiesta
+        private final ExecutionReport report = new ExecutionReport();
+        // Istantanea della profondita' del book riutilizzata dal comando getDepth
+        private final BookDepth depth = new BookDepth();
+
+        public ClientHandler(Socket clientSocket) {
             this.clientSocket = clientSocket;
-            this.udpPort = udpPort;
 
         }
         @Override
@@ -115,144 +127,203 @@ public class mainServer {
 			    while ((inputLine = in.readLine()) != null) {
 			    	                    	
 			    	System.out.println("Ricevuto dal client: " + inputLine);
-			        JsonObject requestJson = gson.fromJson(inputLine, JsonObject.class);
-			        String command = requestJson.get("command").getAsString();
-			        JsonObject data = requestJson.has("data") ? requestJson.getAsJsonObject("data") : null;
-			        if (data == null) { break; }
+			        try {
+				        JsonObject requestJson = gson.fromJson(inputLine, JsonObject.class);
+				        String command = requestJson.get("command").getAsString();
+				        JsonObject data = requestJson.has("data") ? requestJson.getAsJsonObject("data") : null;
+				        if (data == null) { break; }
 			        
-			        OrderBook.Order new_order = null;
-			        Response risp = null;
-			        ResponseId risp2 = new ResponseId();
-			        String msg;
+				        Response risp = null;
+				        ResponseId risp2 = new ResponseId();
+				        String msg;
+				        // Strumento a cui si riferisce il comando, quello di default se il client non lo specifica
+				        String symbol = engine.resolve(data.has("symbol") ? data.get("symbol").getAsString() : null);
                     
-			        // Gestione dei comandi
-			        switch (command) {
-			            case "logout":
-			            	risp = UserManager.logout(data.get("username").getAsString(), userDatabase);
-			                cliente = UserManager.findUserByUsername(data.get("username").getAsString(), userDatabase);
-			                if (cliente != null) { if (cliente.isLogin()) { cliente.logout(); cliente = null; } } 
-
-			                out.println(gson.toJson(risp));
-			                out.flush();
-			            	break;
+				        // Gestione dei comandi
+				        switch (command) {
+				            case "logout":
+				            	risp = UserManager.logout(data.get("username").getAsString(), userDatabase);
+				                cliente = UserManager.findUserByUsername(data.get("username").getAsString(), userDatabase);
+				                if (cliente != null) { if (cliente.isLogin()) { cliente.logout(); cliente = null; } } 
+
+				                out.println(gson.toJson(risp));
+				                out.flush();
+				            	break;
 			            
-			            case "login":
-			                risp = UserManager.login(data.get("username").getAsString(), data.get("password").getAsString(), userDatabase, clientSocket, out);
-			                cliente = UserManager.findUserByUsername(data.get("username").getAsString(), userDatabase);
-			                if (cliente != null) { if (!cliente.isLogin()) { cliente.login(); } }
-			                out.println(gson.toJson(risp));
-			                out.flush();
-			                break;
+				            case "login":
+				                risp = UserManager.login(data.get("username").getAsString(), data.get("password").getAsString(), userDatabase, clientSocket, out);
+				                cliente = UserManager.findUserByUsername(data.get("username").getAsString(), userDatabase);
+				                if (cliente != null) { if (!cliente.isLogin()) { cliente.login(); } }
+				                out.println(gson.toJson(risp));
+				                out.flush();
+				                // Le notifiche ricevute da offline seguono la risposta, in pagine
+				                if (risp.hasNotifications()) { UserManager.drainNotify(cliente, out); }
+				                break;
 			            
-			            case "register":
-			                risp = UserManager.register(data.get("username").getAsString(),data.get("password").getAsString(), clientSocket.getInetAddress().getHostAddress(),userDatabase, null, true);
-			                out.println(gson.toJson(risp));
-			                out.flush();
-			                break;
+				            case "register":
+				                risp = UserManager.register(data.get("username").getAsString(),data.get("password").getAsString(), clientSocket.getInetAddress().getHostAddress(),userDatabase, true);
+				                out.println(gson.toJson(risp));
+				                out.flush();
+				                break;
 			            
-			            case "updateCredentials":
-			                risp = UserManager.updateCredentials(
-			                    data.get("username").getAsString(),
-			                    data.get("old_password").getAsString(),
-			                    data.get("new-password").getAsString(), 
-			                    userDatabase
-			                	);
-			                out.println(gson.toJson(risp));
-			                break;
+				            case "updateCredentials":
+				                risp = UserManager.updateCredentials(
+				                    data.get("username").getAsString(),
+				                    data.get("old_password").getAsString(),
+				                    data.get("new-password").getAsString(), 
+				                    userDatabase
+				                	);
+				                out.println(gson.toJson(risp));
+				                break;
 			            
-			            case "insertMarkerOrder":
+				            case "insertMarkerOrder":
 
-			            	if ( cliente != null && cliente.isLogin() ) {
+				            	if ( cliente != null && cliente.isLogin() ) {
 			            		
-			            		new_order = orderbook.insertMarketOrder(data.get("type").getAsString(), data.get("size").getAsInt());
-			            		risp2.setOrderId(addOrder(new_order, this.user.getUsername()));
-			            		msg = gson.toJson(risp2);
-			            		out.println(msg);
-			            		out.flush();
-			            		if (new_order != null) {
-			            			String notifyJson1 = new_order.toJson();
-			            			sendNotify(notifyJson1, new_order.getUsersToNotifyByOrderId(), this.udpPort);
-			            			orderbook.checkStopOrders();
-			            		}
-			            	} else {
-			            		msg = "E' necessario il login!";
-			            		out.println(msg);
-			            		out.flush();
-			            	}
+				            		engine.insertMarketOrder(symbol, cliente.getUsername(), OrderBook.Side.parse(data.get("type").getAsString()), data.get("size").getAsInt(), report);
+				            		risp2.setOrderId(report.getOrderId());
+				            		if (report.getUnfilledSize() > 0) {
+				            			System.out.println("Ordine parzialmente soddisfatto. Quantità residua: " + report.getUnfilledSize());
+				            		}
+				            		msg = gson.toJson(risp2);
+				            		out.println(msg);
+				            		out.flush();
+				            		dispatcher.publish(report);
+				            	} else {
+				            		msg = "E' necessario il login!";
+				            		out.println(msg);
+				            		out.flush();
+				            	}
 			            	
 			            	
-			            	break;
+				            	break;
 			            	
 			                
-			            case "insertLimitOrder":
-
-			            	if ( cliente != null && cliente.isLogin() ) {
-
-			                    new_order = orderbook.insertLimitOrder(data.get("type").getAsString(), data.get("size").getAsInt(), data.get("price").getAsInt());
-			                    risp2.setOrderId(addOrder(new_order, this.user.getUsername()));
-			                    msg = gson.toJson(risp2);
-			                    out.println(msg);
-			                    out.flush();
-			                    //ThreadSafeFileWriter(fileO, msg);
-			                    if (new_order.getUsersToNotifyByOrderId() != null) {
-			                        String notifyJson2 = new_order.toJson();
-			                        
-			                        sendNotify(notifyJson2, new_order.getUsersToNotifyByOrderId(), udpPort);
-			                    }
-			                    //OrderBook.
-			            	} else {
-			            		msg = "E' necessario il login!";
-			            		out.println(msg);
-			            		out.flush();
-			            	}
-			                break;
-
-			            case "insertStopOrder":
-
-			            	if ( cliente != null && cliente.isLogin() ) {
+				            case "insertLimitOrder":
+
+				            	if ( cliente != null && cliente.isLogin() ) {
+
+				                    engine.insertLimitOrder(symbol, cliente.getUsername(), OrderBook.Side.parse(data.get("type").getAsString()), data.get("size").getAsInt(), data.get("price").getAsInt(), report);
+				                    risp2.setOrderId(report.getOrderId());
+				                    msg = gson.toJson(risp2);
+				                    out.println(msg);
+				                    out.flush();
+				                    //ThreadSafeFileWriter(fileO, msg);
+				                    dispatcher.publish(report);
+				                    //OrderBook.
+				            	} else {
+				            		msg = "E' necessario il login!";
+				            		out.println(msg);
+				            		out.flush();
+				            	}
+				                break;
+
+				            case "insertStopOrder":
+
+				            	if ( cliente != null && cliente.isLogin() ) {
 			            		
-			            		new_order = orderbook.insertStopOrder(data.get("type").getAsString(), data.get("size").getAsInt(), data.get("price").getAsInt());
-			            		risp2.setOrderId(addOrder(new_order, this.user.getUsername()));
-			            		msg = gson.toJson(risp2);
-			            		out.println(msg);
-			            		out.flush();
-			            		//ThreadSafeFileWriter(fileO, msg);
-			            	} else {
-			            		msg = "E' necessario il login!";
-			            		out.println(msg);
-			            		out.flush();
-			            	}
-			               	break;
+				            		engine.insertStopOrder(symbol, cliente.getUsername(), OrderBook.Side.parse(data.get("type").getAsString()), data.get("size").getAsInt(), data.get("price").getAsInt(), report);
+				            		risp2.setOrderId(report.getOrderId());
+				            		msg = gson.toJson(risp2);
+				            		out.println(msg);
+				            		out.flush();
+				            		//ThreadSafeFileWriter(fileO, msg);
+				            	} else {
+				            		msg = "E' necessario il login!";
+				            		out.println(msg);
+				            		out.flush();
+				            	}
+				               	break;
 			                                        
-			            case "cancelOrder":
+				            case "cancelOrder":
 
-			            	if ( cliente != null && cliente.isLogin() ) {
+				            	if ( cliente != null && cliente.isLogin() ) {
 			            		
-			            		if (deleteOrder(data.get("orderId").getAsInt(), this.user.getUsername()) == 1) {
-			            			orderbook.cancelOrder(data.get("orderId").getAsInt());
-			            		}
-			            	} else {
-			            		msg = "E' necessario il login!";
-			            		out.println(msg);
-			            		out.flush();
-			            	}
+				            		risp = new Response();
+				            		if (deleteOrder(symbol, data.get("orderId").getAsInt(), cliente.getUsername(), report) == 1) {
+				            			risp.setResponseErrormsg(100, "OK");
+				            		} else {
+				            			risp.setResponseErrormsg(101, "order does not exist or belongs to different user or has already been finalized");
+				            		}
+				            		out.println(gson.toJson(risp));
+				            		out.flush();
+				            	} else {
+				            		msg = "E' necessario il login!";
+				            		out.println(msg);
+				            		out.flush();
+				            	}
 			            	
-			                break;
+				                break;
 			                
-			            case "getPriceHistory":
-			            	Map<Integer, OrderBook.DayPriceData> monthPriceHistory = OrderBook.getPriceHistory(data.get("month").getAsInt()); // Dati per Settembre
-
-			            	//for (Map.Entry<Integer, OrderBook.DayPriceData> entry : monthPriceHistory.entrySet()) {
-			            	//    System.out.println("Day: " + entry.getKey() + ", " + entry.getValue());
-			            	//}
-			               	//msg = gson.toJson(OrderBook.getOrderHistory(data.get("month").getAsInt()));
-			            	out.println(monthPriceHistory);
-			            	out.flush();
-
-			            default:
-			                break;
+				            case "getPriceHistory":
+				            	// Il mese arriva nel formato MMYYYY, senza anno si intende l'anno corrente
+				            	String period = data.get("month").getAsString();
+				            	int month = Integer.parseInt(period.length() > 2 ? period.substring(0, 2) : period);
+				            	int year = period.length() > 2 ? Integer.parseInt(period.substring(2)) : LocalDate.now(ZoneOffset.UTC).getYear();
+				            	Map<Integer, OrderBook.DayPriceData> monthPriceHistory = engine.getPriceHistory(symbol, month, year);
+
+				            	//for (Map.Entry<Integer, OrderBook.DayPriceData> entry : monthPriceHistory.entrySet()) {
+				            	//    System.out.println("Day: " + entry.getKey() + ", " + entry.getValue());
+				            	//}
+				               	//msg = gson.toJson(OrderBook.getOrderHistory(data.get("month").getAsInt()));
+				            	out.println(monthPriceHistory);
+				            	out.flush();
+				            	break;
+
+				            case "getPriceHistoryRange":
+				            	// Date nel formato yyyyMMdd (GMT, estremi inclusi), periodi di un giorno se l'intervallo non e' indicato
+				            	LocalDate fromDay = LocalDate.parse(data.get("from").getAsString(), DateTimeFormatter.BASIC_ISO_DATE);
+				            	LocalDate toDay = LocalDate.parse(data.get("to").getAsString(), DateTimeFormatter.BASIC_ISO_DATE);
+				            	if (fromDay.isAfter(toDay) || toDay.toEpochDay() - fromDay.toEpochDay() >= historyMaxDays) {
+				            		risp = new Response();
+				            		risp.setResponseErrormsg(103, "invalid range: from must not follow to and the range is limited to " + historyMaxDays + " days");
+				            		out.println(gson.toJson(risp));
+				            		out.flush();
+				            		break;
+				            	}
+				            	// I timestamp sono in secondi su int: le date oltre il 2038 sono rifiutate (ArithmeticException, errore 103)
+				            	int from = Math.toIntExact(fromDay.atStartOfDay(ZoneOffset.UTC).toEpochSecond());
+				            	int to = Math.toIntExact(toDay.plusDays(1).atStartOfDay(ZoneOffset.UTC).toEpochSecond() - 1);
+				            	HistoryQuery.Interval interval = data.has("interval")
+				            			? HistoryQuery.Interval.parse(data.get("interval").getAsString()) : HistoryQuery.Interval.DAY;
+				            	out.println(engine.getPriceHistory(symbol, from, to, interval));
+				            	out.flush();
+				            	break;
+
+				            case "getHistoryCacheStats":
+				            	// Dimensione e hit/miss della cache della cronologia, per il monitoraggio
+				            	out.println(engine.getHistoryCache().toJson());
+				            	out.flush();
+				            	break;
+
+				            case "getDepth":
+				            	// Primi livelli aggregati di ogni lato, 10 se il numero non e' indicato
+				            	engine.getDepth(symbol, data.has("levels") ? data.get("levels").getAsInt() : 10, report, depth);
+				            	out.println(depth.toJson());
+				            	out.flush();
+				            	break;
+
+				            case "getNotifications":
+				            	// Ritrasmissione delle notifiche UDP della sessione corrente, estremi inclusi
+				            	UserManager.UserState state = cliente != null && cliente.isLogin() ? userDatabase.get(cliente.getUsername()) : null;
+				            	if (state != null && state.getSession() != null) {
+				            		out.println(state.getSession().replay(data.get("from").getAsLong(), data.get("to").getAsLong()));
+				            	} else {
+				            		out.println("E' necessario il login!");
+				            	}
+				            	out.flush();
+				            	break;
+
+				            default:
+				                break;
+				        }
+			        } catch (RuntimeException e) {
+			        	// Richiesta non valida (JSON, strumento, lato o campi mancanti): errore al client, la connessione resta aperta
+			        	Response errore = new Response();
+			        	errore.setResponseErrormsg(103, "invalid request: " + e.getMessage());
+			        	out.println(gson.toJson(errore));
+			        	out.flush();
 			        }
-			                           
 			    }
 			    
 			} catch (SocketTimeoutException e) {
@@ -270,91 +341,40 @@ public class mainServer {
         }
     }
 
-    // METODO THREAD SAFE
-    public synchronized static int addOrder(OrderBook.Order order, String username) {
-    	// REQUIRES: assumo che username esiste e che abbia associato un value, oltre che order sia diverso da null
-    	
-    	if (order == null) {return -1;}
-       	for (UserManager.User user : userDatabase.keySet()) {
-            if (user.getUsername().equals(username)) {
-
-            	//userDatabase.get(user).add(order);
-            	// senza fare controlli sul fatto che la lista ci sia gia'
-            	userDatabase.computeIfAbsent(user, key -> Collections.synchronizedList(new ArrayList<>())).add(order);
-            }
-        }
-
-    	return order.getOrderId();
-    }
-
-    public synchronized static int deleteOrder(Integer orderId, String username) {
-
-    	for (UserManager.User user: userDatabase.keySet()) {
-    		if (user.getUsername().equals(username)) {
-    			List<OrderBook.Order> orders = userDatabase.get(user);
-    			synchronized(orders) {
-    				Iterator<OrderBook.Order> iterator = orders.iterator();
-                    while (iterator.hasNext()) {
-                        OrderBook.Order order = iterator.next();
-                        if (order.getOrderId() == orderId) {
-                            iterator.remove();
-                            return 1; // Ritorna 1 se l'ordine è stato trovato e rimosso
-                        }}}}}
+    // La proprieta' e lo stato dell'ordine sono verificati sull'indice dell'order book, senza scorrere gli utenti
+    public static int deleteOrder(String symbol, Integer orderId, String username, ExecutionReport report) throws IOException {
+    	// Un ordine che non e' tra quelli attivi dell'utente non puo' essere cancellato: si risponde senza passare dal motore
+    	UserManager.UserState state = userDatabase.get(username);
+    	if (state == null || !state.hasOpenOrder(orderId)) {
+    		System.err.println("Order " + orderId + " not found.");
+    		return 0;
+    	}
+    	engine.cancelOrder(symbol, orderId, username, report);
+    	// L'esito viene stampato dal thread del client, non da quello di matching
+    	if (report.isSuccess()) {
+    		System.out.println("Order " + orderId + " canceled successfully.");
+    		return 1;
+    	}
+    	System.err.println("Order " + orderId + " not found.");
     	return 0;
     }
 
- // Metodo per inviare notifiche via UDP
-    private static void sendNotify(String message, List<Integer> orderIdsToNotify, int udpPort) {
-        Set<Integer> orderIdsSet = new HashSet<>(orderIdsToNotify); // Usa un Set per ricerche veloci
-
-        try (DatagramSocket socket = new DatagramSocket()) {
-            byte[] buffer = message.getBytes();
-
-            for (UserManager.User user : userDatabase.keySet()) {
-                List<OrderBook.Order> orders = userDatabase.get(user);
-
-                for (OrderBook.Order order : orders) {
-                    if (orderIdsSet.contains(order.getOrderId())) { // Controlla se l'ordine è nella lista di notifica
-                        try {
-                            if (user.isLogin()) {
-                                sendUdpNotification(socket, user, buffer, udpPort);
-                                System.out.println("Notifica inviata a: " + user.getUsername() + " per l'ordine: " + order.getOrderId());
-                            } else {
-                                UserManager.writeNotify(user.getUsername(), order);
-                                System.out.println("Notifica scritta per: " + user.getUsername() + " per l'ordine: " + order.getOrderId());
-                            }
-                        } catch (IOException e) {
-                            System.err.println("Errore nell'inviare la notifica a: " + user.getUsername() + " per l'ordine: " + order.getOrderId());
-                            e.printStackTrace();
-                        }
-                    }
-                }
-            }
-        } catch (IOException e) {
-            System.err.println("Errore generale nell'inviare notifiche UDP: " + e.getMessage());
-            e.printStackTrace();
-        }
-    }
-
-
-    // Metodo helper per inviare una notifica UDP
-    private static void sendUdpNotification(DatagramSocket socket, UserManager.User user, byte[] buffer, int udpPort) throws IOException {
-        InetAddress address = InetAddress.getByName(user.getIpAddress());
-        DatagramPacket packet = new DatagramPacket(buffer, buffer.length, address, udpPort);
-        socket.send(packet);
-    }
-    
     // Strutture ausiliari per rispondere in Json
     public static class Response {
         @SuppressWarnings("unused")
 		private int response;
         @SuppressWarnings("unused")
 		private String errorMessage;
+        // Presente solo nella risposta al login quando seguono le pagine delle notifiche differite
+        private Boolean notifications;
         
         public void setResponseErrormsg(int response, String errorMessage) {
             this.response = response;
             this.errorMessage = errorMessage;
         }
+
+        public void setNotifications(boolean notifications) { this.notifications = notifications; }
+        public boolean hasNotifications() { return notifications != null && notifications; }
    }
     
    static class ResponseId {